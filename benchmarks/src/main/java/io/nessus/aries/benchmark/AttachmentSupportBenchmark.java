@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * Nessus Aries :: Benchmarks
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.nessus.aries.util.AttachmentKey;
+import io.nessus.aries.util.AttachmentSupport;
+
+/**
+ * Measures attachment access on a populated attachment holder
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttachmentSupportBenchmark {
+
+    static final AttachmentKey<String> NAME_KEY = new AttachmentKey<>("name", String.class);
+    static final AttachmentKey<Integer> COUNT_KEY = new AttachmentKey<>("count", Integer.class);
+    static final AttachmentKey<Long> MISSING_KEY = new AttachmentKey<>("missing", Long.class);
+
+    AttachmentSupport attachments;
+    Integer count = 42;
+
+    @Setup
+    public void setup() {
+        attachments = new AttachmentSupport();
+        attachments.putAttachment(NAME_KEY, "Alice");
+        attachments.putAttachment(COUNT_KEY, count);
+        for (int i = 0; i < 8; i++) {
+            attachments.putAttachment(new AttachmentKey<>("key" + i, String.class), "value" + i);
+        }
+    }
+
+    @Benchmark
+    public String getAttachment() {
+        return attachments.getAttachment(NAME_KEY);
+    }
+
+    @Benchmark
+    public Long getMissingAttachment() {
+        return attachments.getAttachment(MISSING_KEY);
+    }
+
+    @Benchmark
+    public Integer putAttachment() {
+        return attachments.putAttachment(COUNT_KEY, count);
+    }
+}
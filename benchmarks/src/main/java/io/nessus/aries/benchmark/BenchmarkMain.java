@@ -0,0 +1,56 @@
+/*-
+ * #%L
+ * Nessus Aries :: Benchmarks
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation rate per operation 
+ * is reported next to the timing results.
+ *
+ * All JMH command line options are supported. The GC profiler is added unless 
+ * it is already given with `-prof`.
+ */
+public final class BenchmarkMain {
+
+    // Hide ctor
+    private BenchmarkMain() {}
+
+    public static void main(String[] args) throws Exception {
+        List<String> argList = new ArrayList<>(Arrays.asList(args));
+        if (!hasProfiler(argList, "gc")) {
+            argList.add(0, "-prof");
+            argList.add(1, "gc");
+        }
+        Main.main(argList.toArray(new String[0]));
+    }
+
+    private static boolean hasProfiler(List<String> args, String name) {
+        for (int i = 0; i < args.size() - 1; i++) {
+            if (args.get(i).equals("-prof") && args.get(i + 1).startsWith(name))
+                return true;
+        }
+        return false;
+    }
+}
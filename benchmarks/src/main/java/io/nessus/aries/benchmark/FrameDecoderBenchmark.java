@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * Nessus Aries :: Benchmarks
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.nessus.aries.websocket.LazyFrameDecoder;
+import io.nessus.aries.websocket.StreamingFrameDecoder;
+import io.nessus.aries.websocket.TreeFrameDecoder;
+import io.nessus.aries.websocket.WebSocketFrame;
+import io.nessus.aries.websocket.WebSocketListener;
+
+/**
+ * Compares the JSON tree decoding of WebSocket frames with single-pass streaming 
+ * and with lazy payload binding
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    @Param({ "connections", "issue_credential", "present_proof" })
+    String topic;
+
+    String message;
+    Function<String, Class<?>> payloadTypes;
+    TreeFrameDecoder treeDecoder = new TreeFrameDecoder();
+    StreamingFrameDecoder streamingDecoder = new StreamingFrameDecoder();
+    LazyFrameDecoder lazyDecoder = new LazyFrameDecoder();
+    Class<?> payloadType;
+
+    @Setup
+    public void setup() {
+        message = SampleFrames.getFrame(topic);
+        WebSocketListener wslistener = new WebSocketListener("Benchmark", null, null);
+        payloadTypes = t -> wslistener.getTopicHandler(t).getPayloadType();
+        payloadType = payloadTypes.apply(topic);
+    }
+
+    @Benchmark
+    public WebSocketFrame treeDecoder() {
+        return treeDecoder.decode(message, payloadTypes);
+    }
+
+    @Benchmark
+    public WebSocketFrame streamingDecoder() {
+        return streamingDecoder.decode(message, payloadTypes);
+    }
+
+    @Benchmark
+    public WebSocketFrame lazyDecoder() {
+        return lazyDecoder.decode(message, payloadTypes);
+    }
+
+    @Benchmark
+    public Object lazyDecoderAndBind() {
+        return lazyDecoder.decode(message, payloadTypes).getPayload(payloadType);
+    }
+}
@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * Nessus Aries :: Benchmarks
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.webhook.EventType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.nessus.aries.websocket.RecordingPolicy;
+import io.nessus.aries.websocket.WebSocketListener;
+
+/**
+ * Measures recording on the reader thread while other threads await recorded events.
+ *
+ * The awaited connections are always recorded already, so that an await measures
+ * the lookup and not the wait for an event.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordingBenchmark {
+
+    static final int CONNECTIONS = 1000;
+
+    final AtomicInteger next = new AtomicInteger();
+    String[] connectionIds;
+    String[] messages;
+    WebSocketListener wslistener;
+
+    @Setup
+    public void setup() {
+        String sample = SampleFrames.getFrame("connections");
+        String sampleId = "0d3a6c2e-2f7c-4a7e-9b6f-3c1f5d2e8a90";
+        connectionIds = new String[CONNECTIONS];
+        messages = new String[CONNECTIONS];
+        for (int i = 0; i < CONNECTIONS; i++) {
+            connectionIds[i] = String.format("%s%04d", sampleId.substring(0, sampleId.length() - 4), i);
+            messages[i] = sample.replace(sampleId, connectionIds[i]);
+        }
+        wslistener = new WebSocketListener("Benchmark", null, null);
+        wslistener.startRecording(RecordingPolicy.builder().maxEvents(10 * CONNECTIONS).build(), EventType.CONNECTIONS);
+        for (String msg : messages) {
+            wslistener.onMessage(null, msg);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void record() {
+        int idx = Math.floorMod(next.getAndIncrement(), CONNECTIONS);
+        wslistener.onMessage(null, messages[idx]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public long awaitById() {
+        String connectionId = connectionIds[ThreadLocalRandom.current().nextInt(CONNECTIONS)];
+        return wslistener.awaitConnection(connectionId, ConnectionRecord::stateIsActive, 1, TimeUnit.SECONDS).count();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public ConnectionRecord awaitAsyncById() throws Exception {
+        String connectionId = connectionIds[ThreadLocalRandom.current().nextInt(CONNECTIONS)];
+        return wslistener.awaitConnectionAsync(connectionId, ConnectionRecord::stateIsActive, 1, TimeUnit.SECONDS).get();
+    }
+}
@@ -0,0 +1,51 @@
+/*-
+ * #%L
+ * Nessus Aries :: Benchmarks
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+import io.nessus.aries.util.AssertState;
+
+/**
+ * Captured WebSocket frames as sent by the agent
+ */
+public final class SampleFrames {
+
+    // Hide ctor
+    private SampleFrames() {}
+
+    /**
+     * Load the sample frame for the given topic
+     */
+    public static String getFrame(String topic) {
+        InputStream input = SampleFrames.class.getResourceAsStream("/frames/" + topic + ".json");
+        AssertState.notNull(input, "No sample frame for: " + topic);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            return br.readLine();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Nessus Aries :: Benchmarks
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.benchmark;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.hyperledger.aries.api.multitenancy.WalletRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.nessus.aries.wallet.NessusWallet;
+import io.nessus.aries.wallet.WalletRegistry;
+
+/**
+ * Measures wallet lookups in a registry with many tenant wallets
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalletRegistryBenchmark {
+
+    @Param({ "10000", "100000" })
+    int wallets;
+
+    String[] walletIds;
+    String[] walletNames;
+    WalletRegistry walletRegistry;
+
+    @Setup
+    public void setup() {
+        walletIds = new String[wallets];
+        walletNames = new String[wallets];
+        walletRegistry = new WalletRegistry();
+        for (int i = 0; i < wallets; i++) {
+            walletIds[i] = UUID.randomUUID().toString();
+            walletNames[i] = "Wallet" + i;
+            walletRegistry.putWallet(createWallet(walletIds[i], walletNames[i]));
+        }
+    }
+
+    @Benchmark
+    public NessusWallet getWallet() {
+        return walletRegistry.getWallet(walletIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public String getWalletName() {
+        return walletRegistry.getWalletName(walletIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public NessusWallet getWalletByName() {
+        return walletRegistry.getWalletByName(walletNames[nextIndex()]);
+    }
+
+    private int nextIndex() {
+        return ThreadLocalRandom.current().nextInt(wallets);
+    }
+
+    static NessusWallet createWallet(String walletId, String walletName) {
+        WalletRecord.WalletSettings settings = new WalletRecord.WalletSettings();
+        settings.setWalletId(walletId);
+        settings.setWalletName(walletName);
+        NessusWallet wallet = new NessusWallet();
+        wallet.setWalletId(walletId);
+        wallet.setSettings(settings);
+        return wallet;
+    }
+}
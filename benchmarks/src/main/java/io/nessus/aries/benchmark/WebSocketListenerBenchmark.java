@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * Nessus Aries :: Benchmarks
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hyperledger.aries.webhook.EventType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.nessus.aries.websocket.RecordingPolicy;
+import io.nessus.aries.websocket.WebSocketListener;
+
+/**
+ * Measures the cost per received frame, from parsing to the dispatch to the topic handler,
+ * with and without recording
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebSocketListenerBenchmark {
+
+    @Param({ "connections", "issue_credential", "present_proof" })
+    String topic;
+
+    String message;
+    WebSocketListener wslistener;
+    WebSocketListener recordingListener;
+
+    @Setup
+    public void setup() {
+        message = SampleFrames.getFrame(topic);
+        wslistener = new WebSocketListener("Benchmark", null, null);
+        recordingListener = new WebSocketListener("Recording", null, null);
+        recordingListener.startRecording(RecordingPolicy.builder().maxEvents(1000).build(), 
+                EventType.CONNECTIONS, EventType.ISSUE_CREDENTIAL, EventType.PRESENT_PROOF);
+    }
+
+    @Benchmark
+    public void onMessage() {
+        wslistener.onMessage(null, message);
+    }
+
+    @Benchmark
+    public void onMessageRecording() {
+        recordingListener.onMessage(null, message);
+    }
+}
@@ -21,20 +21,29 @@ package io.nessus.aries;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.time.Duration;
 
+import io.nessus.aries.util.AssertArg;
 import io.nessus.aries.util.AssertState;
+import okhttp3.OkHttpClient;
 
 public class AgentConfiguration {
     
     private final String agentAdminUrl;
     private final String agentUserUrl;
     private final String agentApiKey;
+    private final Duration webSocketPingInterval;
+    private final Duration webSocketLivenessTimeout;
+    private final OkHttpClient webSocketClient;
     
     // Hide ctor
-    private AgentConfiguration(String agentAdminUrl, String agentUserUrl, String agentApiKey) {
+    private AgentConfiguration(String agentAdminUrl, String agentUserUrl, String agentApiKey, Duration webSocketPingInterval, Duration webSocketLivenessTimeout, OkHttpClient webSocketClient) {
         this.agentAdminUrl = agentAdminUrl;
         this.agentUserUrl = agentUserUrl;
         this.agentApiKey = agentApiKey;
+        this.webSocketPingInterval = webSocketPingInterval;
+        this.webSocketLivenessTimeout = webSocketLivenessTimeout;
+        this.webSocketClient = webSocketClient;
     }
     
     public static AgentConfiguration defaultConfiguration() {
@@ -87,10 +96,33 @@ public class AgentConfiguration {
         return agentApiKey;
     }
 
+    /**
+     * The interval of WebSocket pings, or null for no pings
+     */
+    public Duration getWebSocketPingInterval() {
+        return webSocketPingInterval;
+    }
+
+    /**
+     * The max time without a received frame, after which an open WebSocket is considered dead, or null for no limit
+     */
+    public Duration getWebSocketLivenessTimeout() {
+        return webSocketLivenessTimeout;
+    }
+
+    /**
+     * The caller-owned client that opens WebSockets to the agent, or null. 
+     * Without such a client, each WebSocketClient leases the shared one from {@link HttpClientFactory}.
+     */
+    public OkHttpClient getWebSocketClient() {
+        return webSocketClient;
+    }
+
     @Override
     public String toString() {
         String reductedKey = agentApiKey != null ? agentApiKey.substring(0, 4) + "..." : null;
-        return "AgentConfiguration [agentAdminUrl=" + agentAdminUrl + ", agentUserUrl=" + agentUserUrl + ", agentApiKey=" + reductedKey + "]";
+        return "AgentConfiguration [agentAdminUrl=" + agentAdminUrl + ", agentUserUrl=" + agentUserUrl + ", agentApiKey=" + reductedKey + ", webSocketPingInterval=" + webSocketPingInterval 
+                + ", webSocketLivenessTimeout=" + webSocketLivenessTimeout + "]";
     }
 
     public static class AgentConfigurationBuilder {
@@ -98,6 +130,9 @@ public class AgentConfiguration {
         private String adminUrl;
         private String userUrl;
         private String apiKey;
+        private Duration webSocketPingInterval;
+        private Duration webSocketLivenessTimeout;
+        private OkHttpClient webSocketClient;
         
         public AgentConfigurationBuilder adminUrl(String adminUrl) {
             this.adminUrl = adminUrl;
@@ -117,8 +152,32 @@ public class AgentConfiguration {
             
         }
         
+        public AgentConfigurationBuilder webSocketPingInterval(Duration pingInterval) {
+            AssertArg.isTrue(pingInterval == null || !pingInterval.isNegative(), "Invalid pingInterval: " + pingInterval);
+            this.webSocketPingInterval = pingInterval;
+            return this;
+        }
+        
+        /**
+         * Fail an open WebSocket that did not receive a frame for the given time. 
+         * Agents send keep-alive frames, so this detects half-open connections that still look open.
+         */
+        public AgentConfigurationBuilder webSocketLivenessTimeout(Duration livenessTimeout) {
+            AssertArg.isTrue(livenessTimeout == null || !livenessTimeout.isNegative() && !livenessTimeout.isZero(), "Invalid livenessTimeout: " + livenessTimeout);
+            this.webSocketLivenessTimeout = livenessTimeout;
+            return this;
+        }
+        
+        /**
+         * Use the given client for WebSockets, instead of the shared one. The client is owned by the caller.
+         */
+        public AgentConfigurationBuilder webSocketClient(OkHttpClient webSocketClient) {
+            this.webSocketClient = webSocketClient;
+            return this;
+        }
+        
         public AgentConfiguration build() {
-            return new AgentConfiguration(adminUrl, userUrl, apiKey);
+            return new AgentConfiguration(adminUrl, userUrl, apiKey, webSocketPingInterval, webSocketLivenessTimeout, webSocketClient);
         }
     }
 }
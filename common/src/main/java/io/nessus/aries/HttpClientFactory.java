@@ -19,6 +19,9 @@
  */
 package io.nessus.aries;
 
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
@@ -28,6 +31,8 @@ import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
 
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import okhttp3.logging.HttpLoggingInterceptor;
 
@@ -35,6 +40,10 @@ public final class HttpClientFactory {
     
     static final Logger log = LoggerFactory.getLogger(HttpClientFactory.class);
     
+    // The base of all leased WebSocket clients, which exists while there are open leases
+    private static OkHttpClient webSocketBaseClient;
+    private static int webSocketLeases;
+    
     // Hide ctor
     private HttpClientFactory() {}
     
@@ -48,6 +57,53 @@ public final class HttpClientFactory {
             .build();
     }
 
+    /**
+     * Acquire a lease on the shared client for WebSocket connections, with the given ping interval.
+     * 
+     * All WebSocket clients share one dispatcher and connection pool, however many wallets 
+     * open a WebSocket. The reader of each WebSocket occupies a dispatcher thread for as long 
+     * as it is open, hence the dispatcher does not limit the number of concurrent calls.
+     * 
+     * The dispatcher and connection pool are shut down when the last lease is closed.
+     * 
+     * @param pingInterval the interval of WebSocket pings, or null for no pings
+     */
+    public static synchronized SharedWebSocketClient acquireWebSocketClient(Duration pingInterval) {
+        if (webSocketBaseClient == null) {
+            ExecutorService executor = Executors.newCachedThreadPool(r -> {
+                Thread th = new Thread(r, "WebSocketDispatcher");
+                th.setDaemon(true);
+                return th;
+            });
+            Dispatcher dispatcher = new Dispatcher(executor);
+            dispatcher.setMaxRequests(Integer.MAX_VALUE);
+            dispatcher.setMaxRequestsPerHost(Integer.MAX_VALUE);
+            webSocketBaseClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool())
+                .connectTimeout(60, TimeUnit.SECONDS)
+                .readTimeout(0, TimeUnit.SECONDS)
+                .build();
+        }
+        webSocketLeases++;
+        // Derived clients share the dispatcher and connection pool of the base client
+        OkHttpClient httpClient = webSocketBaseClient.newBuilder()
+            .pingInterval(pingInterval != null ? pingInterval : Duration.ZERO)
+            .build();
+        return new SharedWebSocketClient(httpClient);
+    }
+    
+    // Shut down the dispatcher and connection pool with the last lease.
+    // WebSockets that are still closing finish on the dispatcher threads.
+    static synchronized void releaseWebSocketClient() {
+        if (--webSocketLeases == 0) {
+            log.debug("Shutdown WebSocket client");
+            webSocketBaseClient.dispatcher().executorService().shutdown();
+            webSocketBaseClient.connectionPool().evictAll();
+            webSocketBaseClient = null;
+        }
+    }
+    
     public static HttpLoggingInterceptor defaultLoggingInterceptor() {
         Gson gson = GsonConfig.defaultConfig();
         Gson pretty = GsonConfig.prettyPrinter();
@@ -0,0 +1,60 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package io.nessus.aries;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * A lease on the shared client for WebSocket connections.
+ * 
+ * All leases share one dispatcher and connection pool. Closing the last open lease shuts 
+ * them down, so that no threads or connections outlive the WebSockets that use them.
+ * A lease is obtained from {@link HttpClientFactory#acquireWebSocketClient(java.time.Duration)}.
+ */
+public final class SharedWebSocketClient implements AutoCloseable {
+
+    private final OkHttpClient httpClient;
+    private boolean closed;
+
+    SharedWebSocketClient(OkHttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * The client that opens WebSockets. It must not be used after the lease is closed.
+     */
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Release the lease. Closing a lease more than once has no effect.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        HttpClientFactory.releaseWebSocketClient();
+    }
+}
@@ -0,0 +1,287 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.util;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A timer for large numbers of timeouts that rarely expire, such as the deadlines of awaits.
+ *
+ * Timeouts are kept in a wheel of buckets, which a single worker thread advances every tick.
+ * Scheduling and cancelling only enqueue the timeout, so that both are O(1) and never contend 
+ * with the worker. The worker moves new timeouts into their buckets and unlinks cancelled ones. 
+ * Timeouts that lie more than one revolution ahead stay in their bucket for the remaining rounds.
+ *
+ * Timeouts expire with a precision of one tick. Tasks run on the worker thread and must be short.
+ * Futures are therefore timed out on an executor, so that their dependent stages never run on the worker.
+ */
+public class HashedWheelTimer implements AutoCloseable {
+
+    static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private static HashedWheelTimer defaultTimer;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean closed;
+    private long tick;
+
+    /**
+     * @param wheelSize the number of buckets, which is rounded up to a power of two 
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        AssertArg.notNull(name, "No name");
+        AssertArg.isTrue(tickDuration > 0, "Invalid tickDuration: " + tickDuration);
+        AssertArg.isTrue(wheelSize > 0 && wheelSize <= (1 << 30), "Invalid wheelSize: " + wheelSize);
+        int size = Integer.highestOneBit(wheelSize);
+        size = size < wheelSize ? size << 1 : size;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * The timer shared by all awaits, with a tick of 10ms and a revolution of about 5s
+     */
+    public static synchronized HashedWheelTimer getDefault() {
+        if (defaultTimer == null) {
+            defaultTimer = new HashedWheelTimer("AwaitTimer", 10, TimeUnit.MILLISECONDS, 512);
+        }
+        return defaultTimer;
+    }
+
+    /**
+     * Run the given task after the given delay, unless the returned timeout is cancelled before
+     * @throws RejectedExecutionException if the timer is closed
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        AssertArg.notNull(task, "No task");
+        if (closed)
+            throw new RejectedExecutionException("Timer closed");
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(0, delay)) - startTime;
+        Timeout timeout = new Timeout(task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Complete the given future exceptionally with a TimeoutException, unless it completes before the given timeout.
+     * The timeout is cancelled when the future completes, so that it does not occupy the wheel any longer.
+     * The future is completed on the common pool, which then also runs its dependent stages.
+     */
+    public <T> CompletableFuture<T> orTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+        return orTimeout(future, timeout, unit, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Like {@link #orTimeout(CompletableFuture, long, TimeUnit)}, but complete the future on the given executor
+     */
+    public <T> CompletableFuture<T> orTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit, Executor executor) {
+        AssertArg.notNull(future, "No future");
+        AssertArg.notNull(executor, "No executor");
+        if (!future.isDone()) {
+            Timeout t = schedule(() -> executor.execute(() -> future.completeExceptionally(new TimeoutException())), timeout, unit);
+            future.whenComplete((res, th) -> t.cancel());
+        }
+        return future;
+    }
+
+    /**
+     * The number of timeouts that are scheduled, but have neither expired nor been cancelled
+     */
+    public int getPendingTimeouts() {
+        return pending.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (!closed) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+            unlinkCancelled();
+            transferAdded();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() != Timeout.ST_INIT)
+                continue;
+            long expiresAt = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expiresAt - tick) / wheel.length;
+            // Timeouts that are already due expire with the current tick
+            long ticks = Math.max(expiresAt, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void unlinkCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) 
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * A scheduled task, which may be cancelled until it expires
+     */
+    public final class Timeout {
+
+        static final int ST_INIT = 0;
+        static final int ST_CANCELLED = 1;
+        static final int ST_EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+        // Only accessed by the worker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel this timeout
+         * @return false if it was already cancelled or has expired
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED))
+                return false;
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED))
+                return;
+            pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable th) {
+                log.error("Error in timer task", th);
+            }
+        }
+    }
+
+    // A doubly linked list of timeouts, which is only accessed by the worker thread
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this)
+                return;
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.util;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An executor that runs tasks with the same key strictly in submission order,
+ * while tasks with different keys may run in parallel.
+ *
+ * Keys are mapped onto a fixed number of lanes. Each lane is a single worker thread
+ * with a bounded queue. When the queue of a lane is full, the submitting thread waits 
+ * for room no longer than the offer timeout, after which the task is dropped and counted.
+ * That thread is typically a WebSocket reader, which must not wait on a handler for long.
+ * A dropped task never runs, so that it cannot overtake the tasks queued for its key.
+ */
+public class KeyedExecutor implements AutoCloseable {
+
+    static final Logger log = LoggerFactory.getLogger(KeyedExecutor.class);
+
+    // Wakes an idle lane on shutdown
+    private static final Runnable POISON = () -> {};
+
+    private final Lane[] lanes;
+    private final long offerTimeoutNanos;
+    private final LongAdder rejectedTasks = new LongAdder();
+    private volatile boolean shutdown;
+
+    /**
+     * Create an executor that drops tasks for a full lane without waiting
+     */
+    public KeyedExecutor(String name, int laneCount, int queueBound) {
+        this(name, laneCount, queueBound, Duration.ZERO);
+    }
+
+    public KeyedExecutor(String name, int laneCount, int queueBound, Duration offerTimeout) {
+        AssertArg.notNull(name, "No name");
+        AssertArg.isTrue(laneCount > 0, "Invalid laneCount: " + laneCount);
+        AssertArg.isTrue(queueBound > 0, "Invalid queueBound: " + queueBound);
+        AssertArg.isTrue(offerTimeout != null && !offerTimeout.isNegative(), "Invalid offerTimeout: " + offerTimeout);
+        offerTimeoutNanos = offerTimeout.toNanos();
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(name + "-" + i, queueBound);
+            lanes[i].start();
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * The number of tasks that are queued, but not yet running
+     */
+    public int getQueuedTasks() {
+        int result = 0;
+        for (Lane lane : lanes) {
+            result += lane.queue.size();
+        }
+        return result;
+    }
+
+    /**
+     * The number of tasks that were dropped, because their lane was full
+     */
+    public long getRejectedTasks() {
+        return rejectedTasks.sum();
+    }
+
+    /**
+     * Run the given task after all previously submitted tasks with the same key.
+     * A null key is mapped to the first lane.
+     * 
+     * @throws RejectedExecutionException if the executor is shut down, or the queue of the key's lane 
+     *     is still full after the offer timeout, or the caller is interrupted while waiting
+     */
+    public void execute(Object key, Runnable task) {
+        AssertArg.notNull(task, "No task");
+        if (shutdown)
+            throw new RejectedExecutionException("Executor shut down");
+        Lane lane = lanes[laneIndex(key)];
+        boolean queued;
+        try {
+            queued = lane.queue.offer(task, offerTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted", ex);
+        }
+        if (!queued) {
+            rejectedTasks.increment();
+            throw new RejectedExecutionException("Queue full: " + lane.getName());
+        }
+    }
+
+    /**
+     * Stop accepting new tasks. Tasks that are already queued still run.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Lane lane : lanes) {
+            // A full queue does not need waking
+            lane.queue.offer(POISON);
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Lane lane : lanes) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (millis <= 0)
+                return false;
+            lane.join(millis);
+            if (lane.isAlive())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    private int laneIndex(Object key) {
+        if (key == null)
+            return 0;
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, lanes.length);
+    }
+
+    class Lane extends Thread {
+
+        final BlockingQueue<Runnable> queue;
+
+        Lane(String name, int queueBound) {
+            super(name);
+            this.queue = new ArrayBlockingQueue<>(queueBound);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown || !queue.isEmpty()) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                if (task == POISON)
+                    continue;
+                try {
+                    task.run();
+                } catch (Throwable th) {
+                    log.error("Error in task: " + getName(), th);
+                }
+            }
+        }
+    }
+}
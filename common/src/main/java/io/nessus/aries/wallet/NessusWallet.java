@@ -37,7 +37,9 @@ import io.nessus.aries.AgentConfiguration;
 import io.nessus.aries.AriesClientFactory;
 import io.nessus.aries.util.AssertState;
 import io.nessus.aries.util.ThreadUtils;
+import io.nessus.aries.websocket.ReconnectPolicy;
 import io.nessus.aries.websocket.WebSocketClient;
+import io.nessus.aries.websocket.WebSocketHub;
 import io.nessus.aries.websocket.WebSocketListener;
 
 /**
@@ -52,6 +54,7 @@ public class NessusWallet extends WalletRecord implements AutoCloseable {
     
     static final Gson gson = GsonConfig.defaultConfig();
     
+    private transient AgentConfiguration agentConfig;
     private transient WalletRegistry walletRegistry;
     private transient WebSocketClient wsclient;
     private transient AriesClient rpclient;
@@ -68,6 +71,18 @@ public class NessusWallet extends WalletRecord implements AutoCloseable {
         return this;
     }
     
+    public NessusWallet withAgentConfiguration(AgentConfiguration agentConfig) {
+        this.agentConfig = agentConfig;
+        return this;
+    }
+    
+    /**
+     * The configuration of the agent that hosts this wallet, or the default configuration
+     */
+    public AgentConfiguration getAgentConfiguration() {
+        return agentConfig != null ? agentConfig : AgentConfiguration.defaultConfiguration();
+    }
+    
     public String getWalletName() {
         return getSettings().getWalletName();
     }
@@ -93,7 +108,7 @@ public class NessusWallet extends WalletRecord implements AutoCloseable {
     }
     
     public AriesClient createClient() {
-        return createClient(AgentConfiguration.defaultConfiguration());
+        return createClient(getAgentConfiguration());
     }
     
     public AriesClient createClient(AgentConfiguration config) {
@@ -101,21 +116,45 @@ public class NessusWallet extends WalletRecord implements AutoCloseable {
     }
     
     public WebSocketClient createWebSocketClient() {
-        return createWebSocketClient(AgentConfiguration.defaultConfiguration(), null);
+        return createWebSocketClient(getAgentConfiguration(), null);
     }
     
     public WebSocketClient createWebSocketClient(AgentConfiguration config) {
         return createWebSocketClient(config, null);
     }
     
+    /**
+     * Create a WebSocket client that receives the events for this wallet from a shared hub
+     */
+    public WebSocketClient createWebSocketClient(WebSocketHub wshub) {
+        return createWebSocketClient(wshub, null);
+    }
+    
+    public WebSocketClient createWebSocketClient(WebSocketHub wshub, WebSocketListener wslistener) {
+    	AssertState.isNull(wsclient, "WebSocket client already created");
+    	if (wslistener == null) {
+    		wslistener = new WebSocketListener(getWalletName(), walletRegistry, null);
+    	}
+    	wsclient = new WebSocketClient(wshub.getAgentConfiguration(), this);
+    	wsclient.subscribeTo(wshub, wslistener);
+        return wsclient;
+    }
+    
     public WebSocketClient createWebSocketClient(AgentConfiguration config, WebSocketListener wslistener) {
+        return createWebSocketClient(config, wslistener, null);
+    }
+    
+    /**
+     * Create a WebSocket client that reconnects according to the given policy
+     */
+    public WebSocketClient createWebSocketClient(AgentConfiguration config, WebSocketListener wslistener, ReconnectPolicy policy) {
     	AssertState.isNull(wsclient, "WebSocket client already created");
     	if (wslistener == null) {
     		List<String> walletIdFilter = Collections.singletonList(getWalletId());
     		wslistener = new WebSocketListener(getWalletName(), walletRegistry, walletIdFilter);
     	}
     	wsclient = new WebSocketClient(config, this);
-    	wsclient.openWebSocket(wslistener);
+    	wsclient.openWebSocket(wslistener, policy);
         return wsclient;
     }
     
@@ -138,13 +177,12 @@ public class NessusWallet extends WalletRecord implements AutoCloseable {
         if (walletRegistry != null)
             walletRegistry.removeWallet(getWalletId());
             
-        AriesClient adminClient = AriesClientFactory.adminClient();
+        AriesClient adminClient = AriesClientFactory.adminClient(getAgentConfiguration());
         adminClient.multitenancyWalletRemove(getWalletId(), RemoveWalletRequest.builder()
                 .walletKey(getToken())
                 .build());
 
         // Wait for the wallet to get removed 
-        ThreadUtils.sleepWell(500); 
         while (!adminClient.multitenancyWallets(getWalletName()).get().isEmpty()) {
             ThreadUtils.sleepWell(500); 
         }
@@ -127,7 +127,9 @@ public class WalletBuilder {
         
         AriesClient adminClient = AriesClientFactory.adminClient(agentConfig);
         WalletRecord walletRecord = adminClient.multitenancyWalletCreate(walletRequest).get();
-        NessusWallet nessusWallet = NessusWallet.build(walletRecord).withWalletRegistry(walletRegistry);
+        NessusWallet nessusWallet = NessusWallet.build(walletRecord)
+                .withAgentConfiguration(agentConfig)
+                .withWalletRegistry(walletRegistry);
         String walletId = nessusWallet.getWalletId();
         log.info("{}: [{}] {}", walletName, walletId, nessusWallet);
 
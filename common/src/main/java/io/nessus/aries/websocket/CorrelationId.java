@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+/**
+ * The ids by which recorded events are indexed.
+ *
+ * An id is taken from the top-level field of the event payload with one of the given names.
+ * The V2 protocols use shorter names for the exchange ids than V1.
+ */
+public enum CorrelationId {
+
+    CONNECTION_ID("connection_id"),
+    CREDENTIAL_EXCHANGE_ID("credential_exchange_id", "cred_ex_id"),
+    PRESENTATION_EXCHANGE_ID("presentation_exchange_id", "pres_ex_id"),
+    THREAD_ID("thread_id");
+
+    private static final CorrelationId[] KEYS = values();
+
+    private final String[] fieldNames;
+
+    CorrelationId(String... fieldNames) {
+        this.fieldNames = fieldNames;
+    }
+
+    public String[] getFieldNames() {
+        return fieldNames.clone();
+    }
+
+    /**
+     * Extract the ids from the given JSON payload in a single scan over its top-level fields
+     * @return the ids indexed by ordinal, with null for missing ids
+     */
+    static String[] extract(String json) {
+        String[] result = new String[KEYS.length];
+        if (json == null)
+            return result;
+        JsonScanner scanner = new JsonScanner(json);
+        while (scanner.nextField()) {
+            CorrelationId key = forFieldName(scanner.name());
+            if (key != null && result[key.ordinal()] == null) {
+                result[key.ordinal()] = scanner.stringValue();
+            }
+        }
+        return result;
+    }
+
+    private static CorrelationId forFieldName(String name) {
+        for (CorrelationId key : KEYS) {
+            for (String fieldName : key.fieldNames) {
+                if (fieldName.equals(name))
+                    return key;
+            }
+        }
+        return null;
+    }
+}
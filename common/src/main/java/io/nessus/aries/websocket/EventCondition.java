@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.util.function.Predicate;
+
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.api.issue_credential_v1.V1CredentialExchange;
+import org.hyperledger.aries.api.issue_credential_v2.V20CredExRecord;
+import org.hyperledger.aries.api.present_proof.PresentationExchangeRecord;
+import org.hyperledger.aries.api.present_proof_v2.V20PresExRecord;
+import org.hyperledger.aries.webhook.EventType;
+
+import io.nessus.aries.util.AssertArg;
+
+/**
+ * A typed predicate over the recorded events of a given type, optionally restricted 
+ * to the events of a single connection or exchange.
+ *
+ * Conditions are combined in composite awaits, which wait for all, any or a sequence
+ * of them with a single deadline.
+ */
+public final class EventCondition<T> {
+
+    private final EventType evtype;
+    private final Class<T> payloadType;
+    private final CorrelationId key;
+    private final String id;
+    private final Predicate<T> predicate;
+
+    // Hide ctor
+    private EventCondition(EventType evtype, Class<T> payloadType, CorrelationId key, String id, Predicate<T> predicate) {
+        AssertArg.notNull(evtype, "No evtype");
+        AssertArg.notNull(payloadType, "No payloadType");
+        AssertArg.isTrue(key == null || id != null, "No id");
+        AssertArg.notNull(predicate, "No predicate");
+        this.evtype = evtype;
+        this.payloadType = payloadType;
+        this.key = key;
+        this.id = id;
+        this.predicate = predicate;
+    }
+
+    public static <T> EventCondition<T> of(EventType evtype, Class<T> payloadType, Predicate<T> predicate) {
+        return new EventCondition<>(evtype, payloadType, null, null, predicate);
+    }
+
+    public static <T> EventCondition<T> of(EventType evtype, Class<T> payloadType, CorrelationId key, String id, Predicate<T> predicate) {
+        return new EventCondition<>(evtype, payloadType, key, id, predicate);
+    }
+
+    public static EventCondition<ConnectionRecord> connection(Predicate<ConnectionRecord> predicate) {
+        return of(EventType.CONNECTIONS, ConnectionRecord.class, predicate);
+    }
+
+    public static EventCondition<ConnectionRecord> connection(String connectionId, Predicate<ConnectionRecord> predicate) {
+        return of(EventType.CONNECTIONS, ConnectionRecord.class, CorrelationId.CONNECTION_ID, connectionId, predicate);
+    }
+
+    public static EventCondition<V1CredentialExchange> issueCredentialV1(Predicate<V1CredentialExchange> predicate) {
+        return of(EventType.ISSUE_CREDENTIAL, V1CredentialExchange.class, predicate);
+    }
+
+    public static EventCondition<V1CredentialExchange> issueCredentialV1(String credExId, Predicate<V1CredentialExchange> predicate) {
+        return of(EventType.ISSUE_CREDENTIAL, V1CredentialExchange.class, CorrelationId.CREDENTIAL_EXCHANGE_ID, credExId, predicate);
+    }
+
+    public static EventCondition<V20CredExRecord> issueCredentialV2(Predicate<V20CredExRecord> predicate) {
+        return of(EventType.ISSUE_CREDENTIAL_V2, V20CredExRecord.class, predicate);
+    }
+
+    public static EventCondition<V20CredExRecord> issueCredentialV2(String credExId, Predicate<V20CredExRecord> predicate) {
+        return of(EventType.ISSUE_CREDENTIAL_V2, V20CredExRecord.class, CorrelationId.CREDENTIAL_EXCHANGE_ID, credExId, predicate);
+    }
+
+    public static EventCondition<PresentationExchangeRecord> presentProofV1(Predicate<PresentationExchangeRecord> predicate) {
+        return of(EventType.PRESENT_PROOF, PresentationExchangeRecord.class, predicate);
+    }
+
+    public static EventCondition<PresentationExchangeRecord> presentProofV1(String presExId, Predicate<PresentationExchangeRecord> predicate) {
+        return of(EventType.PRESENT_PROOF, PresentationExchangeRecord.class, CorrelationId.PRESENTATION_EXCHANGE_ID, presExId, predicate);
+    }
+
+    public static EventCondition<V20PresExRecord> presentProofV2(Predicate<V20PresExRecord> predicate) {
+        return of(EventType.PRESENT_PROOF_V2, V20PresExRecord.class, predicate);
+    }
+
+    public static EventCondition<V20PresExRecord> presentProofV2(String presExId, Predicate<V20PresExRecord> predicate) {
+        return of(EventType.PRESENT_PROOF_V2, V20PresExRecord.class, CorrelationId.PRESENTATION_EXCHANGE_ID, presExId, predicate);
+    }
+
+    public EventType getEventType() {
+        return evtype;
+    }
+
+    public Class<T> getPayloadType() {
+        return payloadType;
+    }
+
+    public CorrelationId getCorrelationKey() {
+        return key;
+    }
+
+    public String getCorrelationId() {
+        return id;
+    }
+
+    public Predicate<T> getPredicate() {
+        return predicate;
+    }
+
+    @Override
+    public String toString() {
+        String idSpec = key != null ? ", " + key + "=" + id : "";
+        return "EventCondition [" + evtype + ", " + payloadType.getSimpleName() + idSpec + "]";
+    }
+}
@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.hyperledger.aries.webhook.EventType;
+
+import io.nessus.aries.websocket.WebSocketListener.WebSocketEvent;
+
+/**
+ * A consumer position in the recorded events of a given event type.
+ *
+ * Each read returns the events that were recorded after the previous read and advances 
+ * the position, so that events are neither scanned twice nor missed between reads.
+ * Events that were evicted before they were read are skipped. When the recording is 
+ * restarted, the cursor continues at the start of the new recording.
+ *
+ * A cursor is meant to be used by a single consumer thread.
+ */
+public class EventCursor<T> {
+
+    private final WebSocketListener listener;
+    private final EventType evtype;
+    private final Class<T> payloadType;
+    private final CorrelationId key;
+    private final String id;
+    private RecordingBuffer buffer;
+    private long position;
+
+    EventCursor(WebSocketListener listener, EventType evtype, Class<T> payloadType, CorrelationId key, String id, boolean fromStart) {
+        this.listener = listener;
+        this.evtype = evtype;
+        this.payloadType = payloadType;
+        this.key = key;
+        this.id = id;
+        this.buffer = listener.getRecordingBuffer(evtype);
+        this.position = buffer != null && !fromStart ? buffer.nextSeq() : 0;
+    }
+
+    public EventType getEventType() {
+        return evtype;
+    }
+
+    /**
+     * The sequence number of the next event to be read
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Read the events that were recorded since the last read, without waiting
+     */
+    public List<T> poll() {
+        List<T> result = new ArrayList<>();
+        RecordingBuffer current = currentBuffer();
+        if (current != null) {
+            read(current, result);
+        }
+        return result;
+    }
+
+    /**
+     * Read the events that were recorded since the last read. 
+     * If there are none, wait for the next batch until the timeout expires.
+     * 
+     * @return the next events, which is empty on timeout or when the recording was stopped 
+     */
+    public List<T> next(long timeout, TimeUnit unit) {
+        List<T> result = new ArrayList<>();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            RecordingBuffer current = currentBuffer();
+            while (current != null) {
+                // Obtain the signal before the read, so that no append goes unnoticed
+                CompletableFuture<Void> appended = current.appendSignal();
+                read(current, result);
+                long nanos = deadline - System.nanoTime();
+                if (!result.isEmpty() || nanos <= 0)
+                    break;
+                try {
+                    appended.get(nanos, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException ex) {
+                    // Read once more and return
+                }
+                current = currentBuffer();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+        return result;
+    }
+
+    private void read(RecordingBuffer current, List<T> result) {
+        long toSeq = current.nextSeq();
+        List<WebSocketEvent> events = key != null ? current.lookup(key, id, position, toSeq) : current.since(position, toSeq);
+        for (WebSocketEvent ev : events) {
+            // Skip events with a payload that cannot be bound
+            if (ev.isBindable())
+                result.add(ev.getPayload(payloadType));
+        }
+        position = toSeq;
+    }
+
+    // Follow a restart of the recording
+    private RecordingBuffer currentBuffer() {
+        RecordingBuffer current = listener.getRecordingBuffer(evtype);
+        if (current != buffer) {
+            buffer = current;
+            position = 0;
+        }
+        return current;
+    }
+}
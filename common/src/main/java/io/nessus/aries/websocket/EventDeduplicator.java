@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hyperledger.aries.webhook.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonParseException;
+
+import io.nessus.aries.util.AssertArg;
+import io.nessus.aries.websocket.WebSocketListener.WebSocketEvent;
+
+/**
+ * Drops re-emitted and stale state transitions of connections and exchanges,
+ * before they are recorded and dispatched.
+ *
+ * Events are keyed by their event type and exchange id. An event is a duplicate, when its exchange 
+ * was already seen in the same state. It is a regression, when it was updated before the last accepted
+ * event of its exchange according to `updated_at`. Duplicates are always dropped. Regressions are 
+ * counted and passed on, unless they are configured to be held back.
+ * 
+ * A held back regression is dropped and counted, rather than buffered. The later state of its
+ * exchange has already been passed on, so releasing the regression afterwards would still 
+ * deliver it out of order.
+ *
+ * The states of the most recently seen exchanges are kept in a bounded LRU. An exchange that was
+ * evicted from it counts as new. Events of other types, and events without id or state, always pass.
+ */
+public class EventDeduplicator {
+
+    static final Logger log = LoggerFactory.getLogger(EventDeduplicator.class);
+
+    private static final Map<EventType, CorrelationId> EXCHANGE_IDS = new EnumMap<>(EventType.class);
+    static {
+        EXCHANGE_IDS.put(EventType.CONNECTIONS, CorrelationId.CONNECTION_ID);
+        EXCHANGE_IDS.put(EventType.ISSUE_CREDENTIAL, CorrelationId.CREDENTIAL_EXCHANGE_ID);
+        EXCHANGE_IDS.put(EventType.ISSUE_CREDENTIAL_V2, CorrelationId.CREDENTIAL_EXCHANGE_ID);
+        EXCHANGE_IDS.put(EventType.PRESENT_PROOF, CorrelationId.PRESENTATION_EXCHANGE_ID);
+        EXCHANGE_IDS.put(EventType.PRESENT_PROOF_V2, CorrelationId.PRESENTATION_EXCHANGE_ID);
+    }
+
+    private final int maxExchanges;
+    private final boolean holdBackRegressions;
+    private final Map<String, ExchangeState> exchanges;
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder regressions = new LongAdder();
+    private final LongAdder droppedRegressions = new LongAdder();
+
+    // Hide ctor
+    private EventDeduplicator(int maxExchanges, boolean holdBackRegressions) {
+        this.maxExchanges = maxExchanges;
+        this.holdBackRegressions = holdBackRegressions;
+        this.exchanges = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ExchangeState> eldest) {
+                return size() > EventDeduplicator.this.maxExchanges;
+            }
+        };
+    }
+
+    public static EventDeduplicatorBuilder builder() {
+        return new EventDeduplicatorBuilder();
+    }
+
+    /**
+     * The max number of exchanges whose states are remembered
+     */
+    public int getMaxExchanges() {
+        return maxExchanges;
+    }
+
+    public boolean isHoldBackRegressions() {
+        return holdBackRegressions;
+    }
+
+    /**
+     * The number of dropped duplicates
+     */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * The number of seen regressions, whether held back or not
+     */
+    public long getRegressions() {
+        return regressions.sum();
+    }
+
+    /**
+     * The number of regressions that were held back, i.e. dropped
+     */
+    public long getDroppedRegressions() {
+        return droppedRegressions.sum();
+    }
+
+    /**
+     * The number of exchanges whose states are currently remembered
+     */
+    public synchronized int size() {
+        return exchanges.size();
+    }
+
+    public synchronized void clear() {
+        exchanges.clear();
+    }
+
+    /**
+     * Check the given event against the states seen so far and remember its state 
+     * @return false if the event should be dropped
+     */
+    boolean accept(EventType evtype, WebSocketEvent ev) {
+        CorrelationId idKey = EXCHANGE_IDS.get(evtype);
+        String id = idKey != null ? ev.getCorrelationId(idKey) : null;
+        if (id == null)
+            return true;
+        String state = null;
+        String updatedAt = null;
+        try {
+            JsonScanner scanner = new JsonScanner(ev.getPayloadJson());
+            while ((state == null || updatedAt == null) && scanner.nextField()) {
+                if ("state".equals(scanner.name())) {
+                    state = scanner.stringValue();
+                } else if ("updated_at".equals(scanner.name())) {
+                    updatedAt = scanner.stringValue();
+                }
+            }
+        } catch (JsonParseException ex) {
+            return true;
+        }
+        if (state == null)
+            return true;
+        String key = evtype.getTopic() + '/' + id;
+        synchronized (this) {
+            ExchangeState es = exchanges.get(key);
+            if (es == null) {
+                exchanges.put(key, new ExchangeState(state, updatedAt));
+                return true;
+            }
+            if (es.states.contains(state)) {
+                duplicates.increment();
+                return false;
+            }
+            if (updatedAt != null && es.updatedAt != null && compareTimestamps(updatedAt, es.updatedAt) < 0) {
+                regressions.increment();
+                if (holdBackRegressions) {
+                    droppedRegressions.increment();
+                    log.info("Drop {} regression to '{}', updated at {} before {}", key, state, updatedAt, es.updatedAt);
+                    return false;
+                }
+                es.states.add(state);
+                return true;
+            }
+            es.states.add(state);
+            if (updatedAt != null)
+                es.updatedAt = updatedAt;
+            return true;
+        }
+    }
+
+    /**
+     * Compare agent timestamps like `2022-05-10 12:30:11.123456Z`. 
+     * Timestamps of the same length compare as text, which avoids parsing in the common case.
+     * Timestamps that cannot be parsed are considered equal.
+     */
+    static int compareTimestamps(String a, String b) {
+        if (a.length() == b.length())
+            return a.compareTo(b);
+        try {
+            return Instant.parse(a.replace(' ', 'T')).compareTo(Instant.parse(b.replace(' ', 'T')));
+        } catch (DateTimeParseException ex) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EventDeduplicator [maxExchanges=" + maxExchanges + ", holdBackRegressions=" + holdBackRegressions + "]";
+    }
+
+    private static class ExchangeState {
+
+        final List<String> states = new ArrayList<>(4);
+        String updatedAt;
+
+        ExchangeState(String state, String updatedAt) {
+            this.states.add(state);
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    public static class EventDeduplicatorBuilder {
+
+        private int maxExchanges = 10000;
+        private boolean holdBackRegressions;
+
+        public EventDeduplicatorBuilder maxExchanges(int maxExchanges) {
+            AssertArg.isTrue(maxExchanges > 0, "Invalid maxExchanges: " + maxExchanges);
+            this.maxExchanges = maxExchanges;
+            return this;
+        }
+
+        /**
+         * Drop events that were updated before the last accepted event of their exchange.
+         * Such events are counted, but not buffered for later release.
+         */
+        public EventDeduplicatorBuilder holdBackRegressions(boolean holdBackRegressions) {
+            this.holdBackRegressions = holdBackRegressions;
+            return this;
+        }
+
+        public EventDeduplicator build() {
+            return new EventDeduplicator(maxExchanges, holdBackRegressions);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.nessus.aries.util.AssertArg;
+import io.nessus.aries.util.AssertState;
+
+/**
+ * An append-only journal of raw WebSocket frames in memory-mapped segment files.
+ *
+ * Each record holds the frame together with its receive timestamp and wallet id.
+ * A record is addressed by its offset, which is the position of the record in the
+ * logical byte stream across all segments. Segment files are named after the offset 
+ * of their first record.
+ *
+ * Appends only copy into the mapped segment. Segments are forced to disk by a background 
+ * flusher in intervals, so that one sync commits all records appended in the meantime.
+ * An explicit {@link #sync()} commits immediately. Appends are not blocked while a segment
+ * is forced, except when a full segment is forced before the next one is opened.
+ *
+ * Record layout: int length, int crc32, long receivedAt, short walletId length (-1 for null), 
+ * walletId, frame. The length and checksum cover everything after the checksum. A zero length 
+ * marks the end of the records in a segment.
+ */
+public class EventJournal implements AutoCloseable {
+
+    static final Logger log = LoggerFactory.getLogger(EventJournal.class);
+
+    static final String SUFFIX = ".journal";
+    static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ScheduledExecutorService flusher;
+    // Serializes syncs, which force outside the journal's monitor
+    private final Object syncLock = new Object();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentOffset;
+    private long durableOffset;
+    private boolean dirty;
+    private boolean closed;
+
+    // Hide ctor
+    private EventJournal(Path directory, int segmentSize, Duration syncInterval) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        List<Long> offsets = EventJournalReader.segmentOffsets(directory);
+        if (offsets.isEmpty()) {
+            openSegment(0);
+        } else {
+            recover(offsets.get(offsets.size() - 1));
+        }
+        durableOffset = getEndOffset();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "EventJournalFlusher");
+            th.setDaemon(true);
+            return th;
+        });
+        long millis = syncInterval.toMillis();
+        flusher.scheduleWithFixedDelay(this::flush, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public static EventJournalBuilder builder() {
+        return new EventJournalBuilder();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The offset at which the next record will be appended
+     */
+    public synchronized long getEndOffset() {
+        return segmentOffset + segment.position();
+    }
+
+    /**
+     * The offset up to which records are known to be on disk
+     */
+    public synchronized long getDurableOffset() {
+        return durableOffset;
+    }
+
+    /**
+     * Append a frame to the journal
+     * @return the offset of the appended record
+     */
+    public synchronized long append(long receivedAt, String walletId, String frame) {
+        AssertState.isFalse(closed, "Journal closed");
+        AssertArg.notNull(frame, "No frame");
+        byte[] walletBytes = walletId != null ? walletId.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] frameBytes = frame.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 2 + (walletBytes != null ? walletBytes.length : 0) + frameBytes.length;
+        AssertArg.isTrue(HEADER_SIZE + length + HEADER_SIZE <= segmentSize, "Frame exceeds segment size: " + frameBytes.length);
+        try {
+            // Keep room for the end marker
+            if (segment.remaining() < HEADER_SIZE + length + HEADER_SIZE) {
+                rollSegment();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        long offset = getEndOffset();
+        int start = segment.position();
+        segment.position(start + HEADER_SIZE);
+        segment.putLong(receivedAt);
+        segment.putShort((short) (walletBytes != null ? walletBytes.length : -1));
+        if (walletBytes != null)
+            segment.put(walletBytes);
+        segment.put(frameBytes);
+        CRC32 crc = new CRC32();
+        ByteBuffer body = segment.duplicate();
+        body.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + length);
+        crc.update(body);
+        // Write the length last, so that a reader never sees a partial record
+        segment.putInt(start + 4, (int) crc.getValue());
+        segment.putInt(start, length);
+        dirty = true;
+        return offset;
+    }
+
+    /**
+     * Force the appended records to disk
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            MappedByteBuffer dirtySegment;
+            long endOffset;
+            synchronized (this) {
+                endOffset = getEndOffset();
+                if (closed || !dirty) {
+                    durableOffset = endOffset;
+                    return;
+                }
+                dirtySegment = segment;
+                dirty = false;
+            }
+            try {
+                dirtySegment.force();
+            } catch (RuntimeException ex) {
+                synchronized (this) {
+                    dirty = true;
+                }
+                throw ex;
+            }
+            synchronized (this) {
+                // A segment roll may have moved the durable offset further already
+                durableOffset = Math.max(durableOffset, endOffset);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (!closed) {
+                    if (dirty)
+                        segment.force();
+                    dirty = false;
+                    durableOffset = getEndOffset();
+                    channel.close();
+                    closed = true;
+                }
+            }
+        }
+    }
+
+    private void flush() {
+        try {
+            sync();
+        } catch (RuntimeException ex) {
+            log.error("Cannot sync journal: " + directory, ex);
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        long nextOffset = getEndOffset();
+        segment.force();
+        channel.close();
+        openSegment(nextOffset);
+        durableOffset = nextOffset;
+        dirty = false;
+    }
+
+    private void openSegment(long offset) throws IOException {
+        Path path = EventJournalReader.segmentPath(directory, offset);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segmentOffset = offset;
+    }
+
+    // Continue after the last valid record of the last segment
+    private void recover(long offset) throws IOException {
+        openSegment(offset);
+        int end = EventJournalReader.validEnd(segment.duplicate());
+        segment.position(end);
+        // Clear a torn record, so that it is not mistaken for a valid one later
+        for (int i = end; i < Math.min(end + HEADER_SIZE, segmentSize); i++) {
+            segment.put(i, (byte) 0);
+        }
+        log.info("Recovered journal {} at offset {}", directory, offset + end);
+    }
+
+    public static class EventJournalBuilder {
+
+        private Path directory;
+        private int segmentSize = 64 * 1024 * 1024;
+        private Duration syncInterval = Duration.ofMillis(200);
+
+        public EventJournalBuilder directory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        public EventJournalBuilder segmentSize(int segmentSize) {
+            AssertArg.isTrue(segmentSize >= 1024, "Invalid segmentSize: " + segmentSize);
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * The interval in which appended records are committed to disk
+         */
+        public EventJournalBuilder syncInterval(Duration syncInterval) {
+            AssertArg.isTrue(syncInterval != null && !syncInterval.isNegative() && !syncInterval.isZero(), "Invalid syncInterval: " + syncInterval);
+            this.syncInterval = syncInterval;
+            return this;
+        }
+
+        public EventJournal build() throws IOException {
+            AssertArg.notNull(directory, "No directory");
+            return new EventJournal(directory, segmentSize, syncInterval);
+        }
+    }
+}
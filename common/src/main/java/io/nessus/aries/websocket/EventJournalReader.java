@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import io.nessus.aries.util.AssertArg;
+
+/**
+ * Reads the records of an {@link EventJournal}, e.g. to replay them into a listener 
+ * after a restart, or for auditing and offline analysis.
+ *
+ * Reading stops at the first record that is incomplete or fails its checksum,
+ * which is where a crash may have interrupted the writer.
+ */
+public class EventJournalReader {
+
+    private final Path directory;
+
+    public EventJournalReader(Path directory) {
+        AssertArg.notNull(directory, "No directory");
+        this.directory = directory;
+    }
+
+    /**
+     * Replay the frames from the given offset into the given listener, as if they were received again
+     * The listener should not journal to the same journal while it replays.
+     * @return the offset after the last replayed record
+     */
+    public long replay(long offset, WebSocketListener listener) throws IOException {
+        AssertArg.notNull(listener, "No listener");
+        return read(offset, rec -> listener.onMessage(null, rec.getFrame()));
+    }
+
+    /**
+     * Read the records from the given offset
+     * @return the offset after the last record that was read
+     */
+    public long read(long offset, Consumer<JournalRecord> consumer) throws IOException {
+        List<Long> offsets = segmentOffsets(directory);
+        long next = offset;
+        for (int i = 0; i < offsets.size(); i++) {
+            long base = offsets.get(i);
+            long limit = i + 1 < offsets.size() ? offsets.get(i + 1) : Long.MAX_VALUE;
+            if (next >= limit)
+                continue;
+            try (FileChannel channel = FileChannel.open(segmentPath(directory, base), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int pos = (int) Math.max(0, next - base);
+                JournalRecord rec;
+                while ((rec = readRecord(buffer, base, pos)) != null) {
+                    consumer.accept(rec);
+                    pos += EventJournal.HEADER_SIZE + rec.length;
+                }
+                next = base + pos;
+            }
+            // A torn record in an earlier segment would have been followed by a roll
+            if (i + 1 < offsets.size()) 
+                next = Math.max(next, limit);
+        }
+        return next;
+    }
+
+    static Path segmentPath(Path directory, long offset) {
+        return directory.resolve(String.format("%020d%s", offset, EventJournal.SUFFIX));
+    }
+
+    static List<Long> segmentOffsets(Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return List.of();
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(EventJournal.SUFFIX))
+                    .map(n -> Long.parseLong(n.substring(0, n.length() - EventJournal.SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * The position after the last valid record in the given segment
+     */
+    static int validEnd(ByteBuffer buffer) {
+        int pos = 0;
+        JournalRecord rec;
+        while ((rec = readRecord(buffer, 0, pos)) != null) {
+            pos += EventJournal.HEADER_SIZE + rec.length;
+        }
+        return pos;
+    }
+
+    private static JournalRecord readRecord(ByteBuffer buffer, long base, int pos) {
+        if (pos + EventJournal.HEADER_SIZE > buffer.limit())
+            return null;
+        int length = buffer.getInt(pos);
+        if (length < 10 || pos + EventJournal.HEADER_SIZE + length > buffer.limit())
+            return null;
+        int checksum = buffer.getInt(pos + 4);
+        ByteBuffer body = buffer.duplicate();
+        body.position(pos + EventJournal.HEADER_SIZE).limit(pos + EventJournal.HEADER_SIZE + length);
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != checksum)
+            return null;
+        long receivedAt = body.getLong();
+        short walletLength = body.getShort();
+        String walletId = null;
+        if (walletLength >= 0) {
+            byte[] walletBytes = new byte[walletLength];
+            body.get(walletBytes);
+            walletId = new String(walletBytes, StandardCharsets.UTF_8);
+        }
+        byte[] frameBytes = new byte[body.remaining()];
+        body.get(frameBytes);
+        return new JournalRecord(base + pos, length, receivedAt, walletId, new String(frameBytes, StandardCharsets.UTF_8));
+    }
+
+    public static class JournalRecord {
+
+        private final long offset;
+        private final int length;
+        private final long receivedAt;
+        private final String walletId;
+        private final String frame;
+
+        JournalRecord(long offset, int length, long receivedAt, String walletId, String frame) {
+            this.offset = offset;
+            this.length = length;
+            this.receivedAt = receivedAt;
+            this.walletId = walletId;
+            this.frame = frame;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getReceivedAt() {
+            return receivedAt;
+        }
+
+        public String getWalletId() {
+            return walletId;
+        }
+
+        /**
+         * The raw WebSocket frame
+         */
+        public String getFrame() {
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hyperledger.aries.webhook.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.nessus.aries.util.AssertArg;
+import io.nessus.aries.websocket.WebSocketListener.WebSocketEvent;
+
+/**
+ * A reactive stream of the events handled by a {@link WebSocketListener}, 
+ * optionally restricted to some topics or to a single wallet.
+ *
+ * Events are delivered to each subscriber on the given executor, only as far as that 
+ * subscriber has signalled demand. Undelivered events are queued per subscriber. 
+ * When a subscriber falls behind by more than the buffer size, the overflow strategy applies.
+ *
+ * The WebSocket reader thread only ever enqueues events, it never waits for a subscriber.
+ */
+public class EventPublisher implements Flow.Publisher<WebSocketEvent> {
+
+    static final Logger log = LoggerFactory.getLogger(EventPublisher.class);
+
+    public enum OverflowStrategy {
+        /** Queue all events, without a limit */
+        BUFFER,
+        /** Drop the oldest queued event to make room */
+        DROP_OLDEST,
+        /** Fail the subscriber with an {@link IllegalStateException} */
+        FAIL
+    }
+
+    private final List<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Set<String> topics;
+    private final String walletId;
+    private final OverflowStrategy overflow;
+    private final int bufferSize;
+    private final Executor executor;
+    private volatile boolean completed;
+
+    // Hide ctor
+    private EventPublisher(Set<String> topics, String walletId, OverflowStrategy overflow, int bufferSize, Executor executor) {
+        this.topics = topics;
+        this.walletId = walletId;
+        this.overflow = overflow;
+        this.bufferSize = bufferSize;
+        this.executor = executor;
+    }
+
+    public static EventPublisherBuilder builder() {
+        return new EventPublisherBuilder();
+    }
+
+    public OverflowStrategy getOverflowStrategy() {
+        return overflow;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super WebSocketEvent> subscriber) {
+        AssertArg.notNull(subscriber, "No subscriber");
+        EventSubscription subscription = new EventSubscription(subscriber);
+        if (completed) {
+            subscription.completed = true;
+        } else {
+            subscriptions.add(subscription);
+        }
+        subscription.schedule();
+    }
+
+    /**
+     * Offer an event to all subscribers, if it passes the topic and wallet filters
+     */
+    void offer(WebSocketEvent ev) {
+        if (subscriptions.isEmpty() || !accepts(ev))
+            return;
+        for (EventSubscription subscription : subscriptions) {
+            subscription.offer(ev);
+        }
+    }
+
+    /**
+     * Complete all subscribers, after their queued events are delivered
+     */
+    void complete() {
+        completed = true;
+        for (EventSubscription subscription : subscriptions) {
+            subscription.completed = true;
+            subscription.schedule();
+        }
+    }
+
+    private boolean accepts(WebSocketEvent ev) {
+        if (walletId != null && !walletId.equals(ev.getWalletId()))
+            return false;
+        String topic = ev.getTopic();
+        return topics == null || (topic != null && topics.contains(topic.toLowerCase(Locale.ROOT)));
+    }
+
+    class EventSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super WebSocketEvent> subscriber;
+        private final ArrayDeque<WebSocketEvent> queue = new ArrayDeque<>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private boolean subscribed;
+        private volatile boolean cancelled;
+        private volatile boolean completed;
+        private volatile Throwable error;
+
+        EventSubscription(Flow.Subscriber<? super WebSocketEvent> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void offer(WebSocketEvent ev) {
+            if (cancelled || error != null)
+                return;
+            synchronized (queue) {
+                if (overflow != OverflowStrategy.BUFFER && queue.size() >= bufferSize) {
+                    if (overflow == OverflowStrategy.FAIL) {
+                        error = new IllegalStateException("Subscriber overflow, buffer size: " + bufferSize);
+                    } else {
+                        queue.pollFirst();
+                    }
+                }
+                if (error == null) {
+                    queue.addLast(ev);
+                }
+            }
+            schedule();
+        }
+
+        void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        // Signals to the subscriber are serialized by the work-in-progress counter
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!subscribed) {
+                    subscribed = true;
+                    subscriber.onSubscribe(this);
+                }
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            while (!cancelled) {
+                Throwable th = error;
+                if (th != null) {
+                    terminate();
+                    subscriber.onError(th);
+                    return;
+                }
+                WebSocketEvent ev = null;
+                boolean empty;
+                synchronized (queue) {
+                    empty = queue.isEmpty();
+                    if (!empty && demand.get() > 0) 
+                        ev = queue.pollFirst();
+                }
+                if (empty && completed) {
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+                if (ev == null)
+                    break;
+                if (demand.get() != Long.MAX_VALUE) {
+                    demand.decrementAndGet();
+                }
+                try {
+                    subscriber.onNext(ev);
+                } catch (RuntimeException ex) {
+                    log.error("Subscriber failed, cancelling", ex);
+                    terminate();
+                    return;
+                }
+            }
+            if (cancelled) {
+                synchronized (queue) {
+                    queue.clear();
+                }
+            }
+        }
+
+        private void terminate() {
+            cancel();
+            synchronized (queue) {
+                queue.clear();
+            }
+        }
+    }
+
+    public static class EventPublisherBuilder {
+
+        private Set<String> topics;
+        private String walletId;
+        private OverflowStrategy overflow = OverflowStrategy.BUFFER;
+        private int bufferSize = 256;
+        private Executor executor = ForkJoinPool.commonPool();
+
+        /**
+         * Restrict the published events to the given event types
+         */
+        public EventPublisherBuilder eventTypes(EventType... evtypes) {
+            if (evtypes.length > 0) {
+                topics = new HashSet<>();
+                for (EventType evt : evtypes) {
+                    topics.add(evt.getTopic().toLowerCase(Locale.ROOT));
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Restrict the published events to the given wallet
+         */
+        public EventPublisherBuilder walletId(String walletId) {
+            this.walletId = walletId;
+            return this;
+        }
+
+        /**
+         * The overflow strategy and the number of events that may be queued per subscriber
+         */
+        public EventPublisherBuilder overflow(OverflowStrategy overflow, int bufferSize) {
+            AssertArg.notNull(overflow, "No overflow");
+            AssertArg.isTrue(bufferSize > 0, "Invalid bufferSize: " + bufferSize);
+            this.overflow = overflow;
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * The executor that delivers events to subscribers
+         */
+        public EventPublisherBuilder executor(Executor executor) {
+            AssertArg.notNull(executor, "No executor");
+            this.executor = executor;
+            return this;
+        }
+
+        public EventPublisher build() {
+            return new EventPublisher(topics, walletId, overflow, bufferSize, executor);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.nessus.aries.util.AssertArg;
+
+/**
+ * Feeds captured WebSocket frames into a listener, to load test or debug a listener 
+ * without a live agent.
+ *
+ * Frames can be replayed at their original timing, at a multiple of it, or as fast as possible.
+ * The replay reports the achieved throughput and the distribution of the time spent in 
+ * {@link WebSocketListener#onMessage(okhttp3.WebSocket, String)}, which includes decoding, 
+ * recording and the handlers that run on the calling thread.
+ *
+ * A capture file has one frame per line, optionally prefixed by its receive time in epoch 
+ * millis and a tab. Frames without a receive time are replayed as fast as possible.
+ */
+public class EventReplay {
+
+    private final double speed;
+
+    // Hide ctor
+    private EventReplay(double speed) {
+        this.speed = speed;
+    }
+
+    public static EventReplay originalTiming() {
+        return new EventReplay(1.0);
+    }
+
+    /**
+     * Replay at the given multiple of the original timing
+     */
+    public static EventReplay atSpeed(double speed) {
+        AssertArg.isTrue(speed > 0, "Invalid speed: " + speed);
+        return new EventReplay(speed);
+    }
+
+    public static EventReplay maxSpeed() {
+        return new EventReplay(Double.POSITIVE_INFINITY);
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    public ReplayReport replay(Path captureFile, WebSocketListener listener) throws IOException {
+        return replay(readFrames(captureFile), listener);
+    }
+
+    public ReplayReport replay(List<TimedFrame> frames, WebSocketListener listener) {
+        AssertArg.notNull(frames, "No frames");
+        AssertArg.notNull(listener, "No listener");
+        long[] latencies = new long[frames.size()];
+        long firstReceivedAt = -1;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames.size(); i++) {
+            TimedFrame frame = frames.get(i);
+            long receivedAt = frame.getReceivedAt();
+            if (receivedAt > 0 && speed != Double.POSITIVE_INFINITY) {
+                if (firstReceivedAt < 0)
+                    firstReceivedAt = receivedAt;
+                long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(receivedAt - firstReceivedAt) / speed);
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            long before = System.nanoTime();
+            listener.onMessage(null, frame.getFrame());
+            latencies[i] = System.nanoTime() - before;
+        }
+        return new ReplayReport(latencies, System.nanoTime() - start);
+    }
+
+    /**
+     * Read the frames from a capture file
+     */
+    public static List<TimedFrame> readFrames(Path captureFile) throws IOException {
+        List<TimedFrame> result = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(captureFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank())
+                    continue;
+                // Compact JSON never contains a raw tab
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    result.add(new TimedFrame(Long.parseLong(line.substring(0, tab).trim()), line.substring(tab + 1)));
+                } else {
+                    result.add(new TimedFrame(0, line));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read the frames from a journal, starting at the given offset
+     */
+    public static List<TimedFrame> readFrames(EventJournalReader journal, long offset) throws IOException {
+        List<TimedFrame> result = new ArrayList<>();
+        journal.read(offset, rec -> result.add(new TimedFrame(rec.getReceivedAt(), rec.getFrame())));
+        return result;
+    }
+
+    /**
+     * Write the frames to a capture file
+     */
+    public static void writeFrames(Path captureFile, List<TimedFrame> frames) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (TimedFrame frame : frames) {
+            lines.add(frame.getReceivedAt() > 0 ? frame.getReceivedAt() + "\t" + frame.getFrame() : frame.getFrame());
+        }
+        Files.write(captureFile, lines, StandardCharsets.UTF_8);
+    }
+
+    public static class TimedFrame {
+
+        private final long receivedAt;
+        private final String frame;
+
+        public TimedFrame(long receivedAt, String frame) {
+            AssertArg.notNull(frame, "No frame");
+            this.receivedAt = receivedAt;
+            this.frame = frame;
+        }
+
+        /**
+         * The original receive time in epoch millis, or zero if unknown
+         */
+        public long getReceivedAt() {
+            return receivedAt;
+        }
+
+        public String getFrame() {
+            return frame;
+        }
+    }
+
+    public static class ReplayReport {
+
+        private final long[] latencies;
+        private final long elapsedNanos;
+
+        ReplayReport(long[] latencies, long elapsedNanos) {
+            this.latencies = latencies.clone();
+            this.elapsedNanos = elapsedNanos;
+            Arrays.sort(this.latencies);
+        }
+
+        public int getEvents() {
+            return latencies.length;
+        }
+
+        public long getElapsed(TimeUnit unit) {
+            return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public double getEventsPerSecond() {
+            return elapsedNanos > 0 ? latencies.length * 1e9 / elapsedNanos : 0;
+        }
+
+        /**
+         * The latency at the given percentile, e.g. 99.0
+         */
+        public long getLatency(double percentile, TimeUnit unit) {
+            AssertArg.isTrue(percentile >= 0 && percentile <= 100, "Invalid percentile: " + percentile);
+            if (latencies.length == 0)
+                return 0;
+            int idx = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return unit.convert(latencies[Math.max(0, idx)], TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ReplayReport [events=%d, elapsed=%dms, events/sec=%.0f, p50=%dus, p90=%dus, p99=%dus, max=%dus]",
+                    getEvents(), getElapsed(TimeUnit.MILLISECONDS), getEventsPerSecond(),
+                    getLatency(50, TimeUnit.MICROSECONDS), getLatency(90, TimeUnit.MICROSECONDS),
+                    getLatency(99, TimeUnit.MICROSECONDS), getLatency(100, TimeUnit.MICROSECONDS));
+        }
+    }
+}
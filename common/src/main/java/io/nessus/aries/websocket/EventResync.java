@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.hyperledger.acy_py.generated.model.V20CredExRecordDetail;
+import org.hyperledger.aries.AriesClient;
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.api.issue_credential_v1.BaseCredExRecord;
+import org.hyperledger.aries.api.issue_credential_v1.IssueCredentialRecordsFilter;
+import org.hyperledger.aries.api.issue_credential_v2.V2IssueCredentialRecordsFilter;
+import org.hyperledger.aries.api.present_proof.BasePresExRecord;
+import org.hyperledger.aries.api.present_proof_v2.V2PresentProofRecordsFilter;
+import org.hyperledger.aries.webhook.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recovers the state transitions that were missed while the WebSocket was down.
+ *
+ * The current connection and exchange records are fetched over REST. Records that were
+ * updated since the given instant are injected into the listener as synthetic events,
+ * in the same way as events received from the agent.
+ */
+class EventResync {
+
+    static final Logger log = LoggerFactory.getLogger(EventResync.class);
+
+    private final AriesClient client;
+    private final WebSocketListener listener;
+    private final String walletId;
+
+    EventResync(AriesClient client, WebSocketListener listener, String walletId) {
+        this.client = client;
+        this.listener = listener;
+        this.walletId = walletId;
+    }
+
+    /**
+     * Inject the records that were updated since the given instant
+     * @return the number of injected events
+     */
+    int resync(Instant since) throws IOException {
+        int count = 0;
+        count += inject(EventType.CONNECTIONS, client.connections(), since);
+        count += inject(EventType.ISSUE_CREDENTIAL, client.issueCredentialRecords(IssueCredentialRecordsFilter.builder().build()), since);
+        Optional<List<V20CredExRecordDetail>> details = client.issueCredentialV2Records(V2IssueCredentialRecordsFilter.builder().build());
+        count += inject(EventType.ISSUE_CREDENTIAL_V2, details.map(l -> l.stream().map(V20CredExRecordDetail::getCredExRecord).collect(Collectors.toList())), since);
+        count += inject(EventType.PRESENT_PROOF, client.presentProofRecords(), since);
+        count += inject(EventType.PRESENT_PROOF_V2, client.presentProofV2Records(V2PresentProofRecordsFilter.builder().build()), since);
+        log.info("{}: Resync injected {} events", listener.getLabel(), count);
+        return count;
+    }
+
+    private int inject(EventType evtype, Optional<? extends List<?>> records, Instant since) {
+        List<?> list = records.isPresent() ? records.get() : List.of();
+        int count = 0;
+        for (Object rec : list) {
+            String updatedAt = updatedAt(rec);
+            if (isUpdatedSince(updatedAt, since)) {
+                listener.injectEvent(evtype.getTopic(), walletId, rec);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String updatedAt(Object rec) {
+        if (rec instanceof ConnectionRecord)
+            return ((ConnectionRecord) rec).getUpdatedAt();
+        if (rec instanceof BaseCredExRecord)
+            return ((BaseCredExRecord) rec).getUpdatedAt();
+        if (rec instanceof BasePresExRecord)
+            return ((BasePresExRecord) rec).getUpdatedAt();
+        // The generated model returned by the V2 records endpoint
+        if (rec instanceof org.hyperledger.acy_py.generated.model.V20CredExRecord)
+            return ((org.hyperledger.acy_py.generated.model.V20CredExRecord) rec).getUpdatedAt();
+        return null;
+    }
+
+    /**
+     * True if the given ACA-Py timestamp is not before the given instant. 
+     * Records without a readable timestamp are considered updated.
+     */
+    static boolean isUpdatedSince(String updatedAt, Instant since) {
+        if (updatedAt == null)
+            return true;
+        try {
+            // ACA-Py uses both "2022-10-18 12:00:00.123456Z" and "2022-10-18T12:00:00.123456Z"
+            Instant instant = Instant.parse(updatedAt.trim().replace(' ', 'T'));
+            return !instant.isBefore(since);
+        } catch (DateTimeParseException ex) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.api.issue_credential_v1.V1CredentialExchange;
+import org.hyperledger.aries.api.issue_credential_v2.V20CredExRecord;
+import org.hyperledger.aries.api.present_proof.PresentationExchangeRecord;
+import org.hyperledger.aries.api.present_proof_v2.V20PresExRecord;
+import org.hyperledger.aries.webhook.EventType;
+
+import com.google.gson.JsonParseException;
+
+import io.nessus.aries.util.AssertArg;
+import io.nessus.aries.util.HashedWheelTimer;
+import io.nessus.aries.websocket.WebSocketListener.WebSocketEvent;
+
+/**
+ * The latest state of every connection and exchange seen by a listener.
+ *
+ * Unlike the recorded events, which keep the history of every state transition, this store keeps
+ * a single record per connection or exchange id, which is replaced by every newer event. Events that 
+ * were updated before the current record, according to `updated_at`, do not replace it.
+ *
+ * A record is removed when its connection or exchange is reported as `deleted`, or when it is
+ * removed explicitly. Memory is therefore proportional to the live connections and exchanges.
+ *
+ * Awaits complete on the thread that updates the store, either with the current record when it 
+ * already matches, or with the first newer one that does.
+ */
+public class ExchangeStateStore {
+
+    static final String STATE_DELETED = "deleted";
+
+    private final Map<EventType, Snapshots<?>> snapshots = new EnumMap<>(EventType.class);
+
+    public ExchangeStateStore() {
+        snapshots.put(EventType.CONNECTIONS, new Snapshots<>(ConnectionRecord.class, CorrelationId.CONNECTION_ID));
+        snapshots.put(EventType.ISSUE_CREDENTIAL, new Snapshots<>(V1CredentialExchange.class, CorrelationId.CREDENTIAL_EXCHANGE_ID));
+        snapshots.put(EventType.ISSUE_CREDENTIAL_V2, new Snapshots<>(V20CredExRecord.class, CorrelationId.CREDENTIAL_EXCHANGE_ID));
+        snapshots.put(EventType.PRESENT_PROOF, new Snapshots<>(PresentationExchangeRecord.class, CorrelationId.PRESENTATION_EXCHANGE_ID));
+        snapshots.put(EventType.PRESENT_PROOF_V2, new Snapshots<>(V20PresExRecord.class, CorrelationId.PRESENTATION_EXCHANGE_ID));
+    }
+
+    public ConnectionRecord getConnection(String connectionId) {
+        return get(EventType.CONNECTIONS, ConnectionRecord.class, connectionId);
+    }
+
+    public V1CredentialExchange getIssueCredentialV1(String credExId) {
+        return get(EventType.ISSUE_CREDENTIAL, V1CredentialExchange.class, credExId);
+    }
+
+    public V20CredExRecord getIssueCredentialV2(String credExId) {
+        return get(EventType.ISSUE_CREDENTIAL_V2, V20CredExRecord.class, credExId);
+    }
+
+    public PresentationExchangeRecord getPresentProofV1(String presExId) {
+        return get(EventType.PRESENT_PROOF, PresentationExchangeRecord.class, presExId);
+    }
+
+    public V20PresExRecord getPresentProofV2(String presExId) {
+        return get(EventType.PRESENT_PROOF_V2, V20PresExRecord.class, presExId);
+    }
+
+    public ConnectionRecord awaitConnection(String connectionId, Predicate<ConnectionRecord> predicate, long timeout, TimeUnit unit) {
+        return awaitState(EventType.CONNECTIONS, ConnectionRecord.class, connectionId, predicate, timeout, unit);
+    }
+
+    public V1CredentialExchange awaitIssueCredentialV1(String credExId, Predicate<V1CredentialExchange> predicate, long timeout, TimeUnit unit) {
+        return awaitState(EventType.ISSUE_CREDENTIAL, V1CredentialExchange.class, credExId, predicate, timeout, unit);
+    }
+
+    public V20CredExRecord awaitIssueCredentialV2(String credExId, Predicate<V20CredExRecord> predicate, long timeout, TimeUnit unit) {
+        return awaitState(EventType.ISSUE_CREDENTIAL_V2, V20CredExRecord.class, credExId, predicate, timeout, unit);
+    }
+
+    public PresentationExchangeRecord awaitPresentProofV1(String presExId, Predicate<PresentationExchangeRecord> predicate, long timeout, TimeUnit unit) {
+        return awaitState(EventType.PRESENT_PROOF, PresentationExchangeRecord.class, presExId, predicate, timeout, unit);
+    }
+
+    public V20PresExRecord awaitPresentProofV2(String presExId, Predicate<V20PresExRecord> predicate, long timeout, TimeUnit unit) {
+        return awaitState(EventType.PRESENT_PROOF_V2, V20PresExRecord.class, presExId, predicate, timeout, unit);
+    }
+
+    public CompletableFuture<ConnectionRecord> awaitConnectionAsync(String connectionId, Predicate<ConnectionRecord> predicate, long timeout, TimeUnit unit) {
+        return awaitAsync(EventType.CONNECTIONS, ConnectionRecord.class, connectionId, predicate, timeout, unit);
+    }
+
+    public CompletableFuture<V1CredentialExchange> awaitIssueCredentialV1Async(String credExId, Predicate<V1CredentialExchange> predicate, long timeout, TimeUnit unit) {
+        return awaitAsync(EventType.ISSUE_CREDENTIAL, V1CredentialExchange.class, credExId, predicate, timeout, unit);
+    }
+
+    public CompletableFuture<V20CredExRecord> awaitIssueCredentialV2Async(String credExId, Predicate<V20CredExRecord> predicate, long timeout, TimeUnit unit) {
+        return awaitAsync(EventType.ISSUE_CREDENTIAL_V2, V20CredExRecord.class, credExId, predicate, timeout, unit);
+    }
+
+    public CompletableFuture<PresentationExchangeRecord> awaitPresentProofV1Async(String presExId, Predicate<PresentationExchangeRecord> predicate, long timeout, TimeUnit unit) {
+        return awaitAsync(EventType.PRESENT_PROOF, PresentationExchangeRecord.class, presExId, predicate, timeout, unit);
+    }
+
+    public CompletableFuture<V20PresExRecord> awaitPresentProofV2Async(String presExId, Predicate<V20PresExRecord> predicate, long timeout, TimeUnit unit) {
+        return awaitAsync(EventType.PRESENT_PROOF_V2, V20PresExRecord.class, presExId, predicate, timeout, unit);
+    }
+
+    /**
+     * Get the latest record with the given id, or null
+     */
+    public <T> T get(EventType evtype, Class<T> payloadType, String id) {
+        Slot slot = getSnapshots(evtype, payloadType).slots.get(id);
+        return slot != null ? payloadType.cast(slot.value) : null;
+    }
+
+    /**
+     * Waits until the latest record with the given id matches the given predicate.
+     * @return the matching record, or null if none matched in time
+     */
+    public <T> T awaitState(EventType evtype, Class<T> payloadType, String id, Predicate<T> predicate, long timeout, TimeUnit unit) {
+        CompletableFuture<T> future = awaitAsync(evtype, payloadType, id, predicate, timeout, unit);
+        try {
+            // The future times out by itself
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            return null;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof TimeoutException)
+                return null;
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Returns a future that completes with the latest record with the given id, as soon as it matches the given predicate.
+     * It completes exceptionally with a TimeoutException when no matching record arrives in time.
+     */
+    public <T> CompletableFuture<T> awaitAsync(EventType evtype, Class<T> payloadType, String id, Predicate<T> predicate, long timeout, TimeUnit unit) {
+        AssertArg.notNull(id, "No id");
+        AssertArg.notNull(predicate, "No predicate");
+        Snapshots<?> snaps = getSnapshots(evtype, payloadType);
+        Waiter<T> waiter = new Waiter<>(payloadType, predicate);
+        List<Runnable> completions = new ArrayList<>(1);
+        snaps.slots.compute(id, (k, slot) -> {
+            slot = slot != null ? slot : new Slot();
+            if (slot.value == null || !waiter.test(slot.value, completions)) 
+                slot.waiters.add(waiter);
+            return slot.isEmpty() ? null : slot;
+        });
+        completions.forEach(Runnable::run);
+        HashedWheelTimer.getDefault().orTimeout(waiter.future, timeout, unit).whenComplete((res, th) -> snaps.slots.computeIfPresent(id, (k, slot) -> {
+            slot.waiters.remove(waiter);
+            return slot.isEmpty() ? null : slot;
+        }));
+        return waiter.future;
+    }
+
+    /**
+     * Remove the record with the given id. Pending awaits for it are not affected.
+     */
+    public void remove(EventType evtype, String id) {
+        Snapshots<?> snaps = snapshots.get(evtype);
+        if (snaps != null) {
+            snaps.slots.computeIfPresent(id, (k, slot) -> {
+                slot.value = null;
+                slot.updatedAt = null;
+                return slot.isEmpty() ? null : slot;
+            });
+        }
+    }
+
+    /**
+     * The number of records of the given type, including ids that are only awaited
+     */
+    public int size(EventType evtype) {
+        Snapshots<?> snaps = snapshots.get(evtype);
+        return snaps != null ? snaps.slots.size() : 0;
+    }
+
+    /**
+     * Replace the record for the event's id, unless the event is older than the current record.
+     * Called on the thread that receives the event.
+     */
+    void update(EventType evtype, WebSocketEvent ev) {
+        Snapshots<?> snaps = snapshots.get(evtype);
+        String id = snaps != null ? ev.getCorrelationId(snaps.key) : null;
+        if (id == null)
+            return;
+        String state = null;
+        String updatedAt = null;
+        try {
+            JsonScanner scanner = new JsonScanner(ev.getPayloadJson());
+            while ((state == null || updatedAt == null) && scanner.nextField()) {
+                if ("state".equals(scanner.name())) {
+                    state = scanner.stringValue();
+                } else if ("updated_at".equals(scanner.name())) {
+                    updatedAt = scanner.stringValue();
+                }
+            }
+        } catch (JsonParseException ex) {
+            return;
+        }
+        // Bind outside of the map update, so that a payload that cannot be bound skips the update
+        Object payload;
+        try {
+            payload = ev.getPayload(snaps.payloadType);
+        } catch (JsonParseException ex) {
+            return;
+        }
+        if (payload == null)
+            return;
+        boolean deleted = STATE_DELETED.equals(state);
+        String evUpdatedAt = updatedAt;
+        List<Runnable> completions = new ArrayList<>();
+        snaps.slots.compute(id, (k, slot) -> {
+            if (slot != null && slot.updatedAt != null && evUpdatedAt != null 
+                    && EventDeduplicator.compareTimestamps(evUpdatedAt, slot.updatedAt) < 0)
+                return slot;
+            slot = slot != null ? slot : new Slot();
+            slot.value = payload;
+            slot.updatedAt = evUpdatedAt;
+            slot.waiters.removeIf(w -> w.test(payload, completions));
+            if (deleted) {
+                slot.value = null;
+                slot.updatedAt = null;
+            }
+            return slot.isEmpty() ? null : slot;
+        });
+        // Complete outside of the map update, because dependent actions may access the store
+        completions.forEach(Runnable::run);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Snapshots<T> getSnapshots(EventType evtype, Class<T> payloadType) {
+        Snapshots<?> snaps = snapshots.get(evtype);
+        AssertArg.notNull(snaps, "Unsupported event type: " + evtype);
+        AssertArg.isTrue(snaps.payloadType == payloadType, "Unsupported payload type: " + payloadType);
+        return (Snapshots<T>) snaps;
+    }
+
+    private static class Snapshots<T> {
+        final Class<T> payloadType;
+        final CorrelationId key;
+        final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+        Snapshots(Class<T> payloadType, CorrelationId key) {
+            this.payloadType = payloadType;
+            this.key = key;
+        }
+    }
+
+    // Slots are only modified while their map entry is locked
+    private static class Slot {
+        volatile Object value;
+        String updatedAt;
+        final List<Waiter<?>> waiters = new ArrayList<>(1);
+
+        boolean isEmpty() {
+            return value == null && waiters.isEmpty();
+        }
+    }
+
+    private static class Waiter<T> {
+        final Class<T> payloadType;
+        final Predicate<T> predicate;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Waiter(Class<T> payloadType, Predicate<T> predicate) {
+            this.payloadType = payloadType;
+            this.predicate = predicate;
+        }
+
+        /**
+         * Test the record and schedule the completion when it matches
+         */
+        boolean test(Object value, List<Runnable> completions) {
+            T payload = payloadType.cast(value);
+            try {
+                if (!predicate.test(payload))
+                    return false;
+                completions.add(() -> future.complete(payload));
+            } catch (RuntimeException ex) {
+                completions.add(() -> future.completeExceptionally(ex));
+            }
+            return true;
+        }
+    }
+}
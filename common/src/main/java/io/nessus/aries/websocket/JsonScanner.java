@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * A minimal cursor over the top-level fields of a JSON object.
+ * 
+ * Nested values are skipped without being parsed, so that individual fields
+ * can be located in a message at the cost of a single character scan.
+ */
+final class JsonScanner {
+
+    private final String json;
+    private int pos = -1;
+    private String name;
+    private int valueStart;
+    private int valueEnd;
+
+    JsonScanner(String json) {
+        this.json = json;
+    }
+
+    /**
+     * Advance to the next top-level field
+     * @return false if there are no more fields
+     */
+    boolean nextField() {
+        if (pos < 0) {
+            pos = 0;
+            skipWhitespace();
+            expect('{');
+        } else {
+            skipWhitespace();
+            if (peek() == ',') 
+                pos++;
+        }
+        skipWhitespace();
+        if (peek() == '}') 
+            return false;
+        expect('"');
+        int start = pos;
+        skipString();
+        name = unescape(start, pos - 1);
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        valueStart = pos;
+        skipValue();
+        valueEnd = pos;
+        return true;
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * The raw text of the current value
+     */
+    String value() {
+        return json.substring(valueStart, valueEnd);
+    }
+
+    /**
+     * The current value as string, or null for a JSON null
+     */
+    String stringValue() {
+        if (json.charAt(valueStart) == '"')
+            return unescape(valueStart + 1, valueEnd - 1);
+        String value = value();
+        return "null".equals(value) ? null : value;
+    }
+
+    /**
+     * Find the string value of a top-level field, scanning no further than that field
+     * @return the value or null
+     */
+    static String findStringField(String json, String name) {
+        JsonScanner scanner = new JsonScanner(json);
+        while (scanner.nextField()) {
+            if (name.equals(scanner.name()))
+                return scanner.stringValue();
+        }
+        return null;
+    }
+
+    /**
+     * True if the raw text is an object without fields
+     */
+    static boolean isEmptyObject(String json) {
+        JsonScanner scanner = new JsonScanner(json);
+        return !scanner.nextField();
+    }
+
+    private void skipValue() {
+        char ch = peek();
+        if (ch == '"') {
+            pos++;
+            skipString();
+        } else if (ch == '{' || ch == '[') {
+            int depth = 0;
+            do {
+                ch = next();
+                if (ch == '"') {
+                    skipString();
+                } else if (ch == '{' || ch == '[') {
+                    depth++;
+                } else if (ch == '}' || ch == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0) {
+                pos++;
+            }
+            if (pos == valueStart)
+                throw syntaxError("Expected value");
+        }
+    }
+
+    // Skip to the position after the closing quote
+    private void skipString() {
+        while (true) {
+            int idx = json.indexOf('"', pos);
+            if (idx < 0)
+                throw syntaxError("Unterminated string");
+            int escapes = 0;
+            for (int i = idx - 1; i >= pos && json.charAt(i) == '\\'; i--) {
+                escapes++;
+            }
+            pos = idx + 1;
+            if (escapes % 2 == 0)
+                return;
+        }
+    }
+
+    private String unescape(int start, int end) {
+        int idx = json.indexOf('\\', start);
+        if (idx < 0 || idx >= end) 
+            return json.substring(start, end);
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char ch = json.charAt(i);
+            if (ch != '\\') {
+                sb.append(ch);
+                continue;
+            }
+            if (++i >= end)
+                throw syntaxError("Unterminated escape");
+            ch = json.charAt(i);
+            switch (ch) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u': 
+                    if (i + 4 >= end)
+                        throw syntaxError("Truncated unicode escape");
+                    int code = 0;
+                    for (int k = i + 1; k <= i + 4; k++) {
+                        int digit = Character.digit(json.charAt(k), 16);
+                        if (digit < 0)
+                            throw syntaxError("Malformed unicode escape");
+                        code = code << 4 | digit;
+                    }
+                    sb.append((char) code); 
+                    i += 4; 
+                    break;
+                default: sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private void expect(char exp) {
+        if (next() != exp)
+            throw syntaxError("Expected '" + exp + "'");
+    }
+
+    private char peek() {
+        if (pos >= json.length())
+            throw syntaxError("Unexpected end of input");
+        return json.charAt(pos);
+    }
+
+    private char next() {
+        char ch = peek();
+        pos++;
+        return ch;
+    }
+
+    private JsonSyntaxException syntaxError(String message) {
+        return new JsonSyntaxException(message + " at position " + pos);
+    }
+}
@@ -0,0 +1,63 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.util.function.Function;
+
+import org.hyperledger.aries.BaseClient;
+import org.hyperledger.aries.webhook.EventType;
+
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Decodes the envelope of a frame and keeps the payload as raw JSON text.
+ * 
+ * The payload is only bound to its type on the first call to {@link WebSocketFrame#getPayload(Class)}.
+ * Events that are never consumed therefore cost little more than a character scan of the frame.
+ */
+public class LazyFrameDecoder implements WebSocketFrameDecoder {
+
+    @Override
+    public WebSocketFrame decode(String message, Function<String, Class<?>> payloadTypes) {
+        String topic = null;
+        String walletId = null;
+        String payload = null;
+        JsonScanner scanner = new JsonScanner(message);
+        while (scanner.nextField()) {
+            String name = scanner.name();
+            if ("topic".equals(name)) {
+                topic = scanner.stringValue();
+            } else if ("wallet_id".equals(name)) {
+                walletId = scanner.stringValue();
+            } else if ("payload".equals(name)) {
+                payload = scanner.value();
+            }
+        }
+        if (topic == null)
+            throw new JsonSyntaxException("No topic in: " + message);
+        if (EventType.PING.topicEquals(topic)) {
+            if (payload == null || "null".equals(payload) || JsonScanner.isEmptyObject(payload)) 
+                return new WebSocketFrame(topic, walletId, null, message.length());
+        } else if (payload == null) {
+            payload = BaseClient.EMPTY_JSON;
+        }
+        return WebSocketFrame.lazy(topic, walletId, payload, message.length());
+    }
+}
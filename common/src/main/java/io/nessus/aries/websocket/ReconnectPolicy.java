@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.nessus.aries.util.AssertArg;
+
+/**
+ * How a {@link WebSocketClient} reconnects after its WebSocket failed or was closed by the agent.
+ *
+ * The delay before each attempt grows exponentially from the initial delay up to the max delay.
+ * A random jitter spreads the reconnects of many clients after an agent restart.
+ *
+ * With resync enabled, the client fetches the connection and exchange records that were updated
+ * during the outage over REST and injects them as synthetic events.
+ */
+public class ReconnectPolicy {
+
+    private final Duration initialDelay;
+    private final Duration maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+    private final boolean resync;
+    private final Duration clockSkew;
+
+    // Hide ctor
+    private ReconnectPolicy(Duration initialDelay, Duration maxDelay, double multiplier, double jitter, int maxAttempts, boolean resync, Duration clockSkew) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+        this.resync = resync;
+        this.clockSkew = clockSkew;
+    }
+
+    public static ReconnectPolicyBuilder builder() {
+        return new ReconnectPolicyBuilder();
+    }
+
+    public Duration getInitialDelay() {
+        return initialDelay;
+    }
+
+    public Duration getMaxDelay() {
+        return maxDelay;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * The max random deviation from the computed delay, as a fraction of that delay
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * The max number of consecutive attempts, or zero for no limit
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public boolean isResync() {
+        return resync;
+    }
+
+    /**
+     * The tolerated clock difference between client and agent, when selecting records for resync
+     */
+    public Duration getClockSkew() {
+        return clockSkew;
+    }
+
+    /**
+     * The delay before the given attempt, starting at one
+     */
+    public long getDelayMillis(int attempt) {
+        double delay = initialDelay.toMillis() * Math.pow(multiplier, Math.max(0, attempt - 1));
+        delay = Math.min(delay, maxDelay.toMillis());
+        if (jitter > 0) {
+            delay *= 1.0 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        }
+        return Math.max(0, Math.round(delay));
+    }
+
+    @Override
+    public String toString() {
+        return "ReconnectPolicy [initialDelay=" + initialDelay + ", maxDelay=" + maxDelay + ", multiplier=" + multiplier 
+                + ", jitter=" + jitter + ", maxAttempts=" + maxAttempts + ", resync=" + resync + "]";
+    }
+
+    public static class ReconnectPolicyBuilder {
+
+        private Duration initialDelay = Duration.ofMillis(500);
+        private Duration maxDelay = Duration.ofSeconds(30);
+        private double multiplier = 2.0;
+        private double jitter = 0.2;
+        private int maxAttempts;
+        private boolean resync;
+        private Duration clockSkew = Duration.ofSeconds(5);
+
+        public ReconnectPolicyBuilder initialDelay(Duration initialDelay) {
+            AssertArg.isTrue(initialDelay != null && !initialDelay.isNegative(), "Invalid initialDelay: " + initialDelay);
+            this.initialDelay = initialDelay;
+            return this;
+        }
+
+        public ReconnectPolicyBuilder maxDelay(Duration maxDelay) {
+            AssertArg.isTrue(maxDelay != null && !maxDelay.isNegative(), "Invalid maxDelay: " + maxDelay);
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        public ReconnectPolicyBuilder multiplier(double multiplier) {
+            AssertArg.isTrue(multiplier >= 1.0, "Invalid multiplier: " + multiplier);
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        public ReconnectPolicyBuilder jitter(double jitter) {
+            AssertArg.isTrue(jitter >= 0 && jitter <= 1.0, "Invalid jitter: " + jitter);
+            this.jitter = jitter;
+            return this;
+        }
+
+        public ReconnectPolicyBuilder maxAttempts(int maxAttempts) {
+            AssertArg.isTrue(maxAttempts >= 0, "Invalid maxAttempts: " + maxAttempts);
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public ReconnectPolicyBuilder resync(boolean resync) {
+            this.resync = resync;
+            return this;
+        }
+
+        public ReconnectPolicyBuilder clockSkew(Duration clockSkew) {
+            AssertArg.isTrue(clockSkew != null && !clockSkew.isNegative(), "Invalid clockSkew: " + clockSkew);
+            this.clockSkew = clockSkew;
+            return this;
+        }
+
+        public ReconnectPolicy build() {
+            return new ReconnectPolicy(initialDelay, maxDelay, multiplier, jitter, maxAttempts, resync, clockSkew);
+        }
+    }
+}
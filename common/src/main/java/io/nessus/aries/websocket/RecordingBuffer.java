@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.nessus.aries.websocket.WebSocketListener.WebSocketEvent;
+
+/**
+ * The recorded events of a single event type.
+ *
+ * Every recorded event is assigned a sequence number, so that readers can continue
+ * from where they left off, even when older events have since been evicted.
+ *
+ * Events are also indexed by their {@link CorrelationId}s, so that the events of a single
+ * connection or exchange can be found without a scan over all recorded events.
+ *
+ * Readers never lock. They work on a concurrent log and wait for appends through a signal
+ * that is only created when somebody waits. Appends and evictions are serialized on the
+ * buffer itself, which in practice is only ever contended by a concurrent policy change.
+ * Events that exceeded the max age are skipped by readers and evicted on the next append.
+ */
+class RecordingBuffer {
+
+    private final ConcurrentSkipListMap<Long, WebSocketEvent> events = new ConcurrentSkipListMap<>();
+    private final Map<CorrelationId, Map<String, ConcurrentSkipListMap<Long, WebSocketEvent>>> index = new EnumMap<>(CorrelationId.class);
+    private final AtomicReference<CompletableFuture<Void>> signal = new AtomicReference<>();
+    private volatile RecordingPolicy policy;
+    private volatile RecordingFilter<?> filter;
+    private volatile long nextSeq;
+    private volatile int size;
+    private volatile long bytes;
+    private volatile long dropped;
+    private volatile boolean closed;
+
+    RecordingBuffer(RecordingPolicy policy) {
+        this(policy, null);
+    }
+
+    RecordingBuffer(RecordingPolicy policy, RecordingFilter<?> filter) {
+        this.policy = policy;
+        this.filter = filter;
+        for (CorrelationId key : CorrelationId.values()) {
+            index.put(key, new ConcurrentHashMap<>());
+        }
+    }
+
+    RecordingPolicy getPolicy() {
+        return policy;
+    }
+
+    synchronized void setPolicy(RecordingPolicy policy) {
+        this.policy = policy;
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * The filter for events to be recorded, or null if all events are recorded
+     */
+    RecordingFilter<?> getFilter() {
+        return filter;
+    }
+
+    void setFilter(RecordingFilter<?> filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * The sequence number of the next event to be recorded
+     */
+    long nextSeq() {
+        return nextSeq;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getDroppedEvents() {
+        return dropped;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void add(WebSocketEvent ev) {
+        long seq = nextSeq;
+        ev.setSeq(seq);
+        events.put(seq, ev);
+        for (CorrelationId key : CorrelationId.values()) {
+            String id = ev.getCorrelationId(key);
+            if (id != null) {
+                index.get(key).computeIfAbsent(id, k -> new ConcurrentSkipListMap<>()).put(seq, ev);
+            }
+        }
+        size++;
+        bytes += ev.getPayloadSize();
+        evict(ev.getReceivedAt());
+        // Publish the event before waking the readers
+        nextSeq = seq + 1;
+        signalReaders();
+    }
+
+    /**
+     * Get a signal that completes on the next append, or when this buffer is closed.
+     * Readers must obtain the signal before they scan, so that no append goes unnoticed.
+     */
+    CompletableFuture<Void> appendSignal() {
+        CompletableFuture<Void> result = signal.updateAndGet(f -> f != null ? f : new CompletableFuture<>());
+        if (closed)
+            result.complete(null);
+        return result;
+    }
+
+    /**
+     * Close this buffer and wake all readers
+     */
+    void close() {
+        closed = true;
+        signalReaders();
+    }
+
+    /**
+     * Get the events with a sequence number equal or greater than the given one and 
+     * less than the given upper bound
+     */
+    List<WebSocketEvent> since(long seq, long toSeq) {
+        return unexpired(events.subMap(seq, toSeq));
+    }
+
+    /**
+     * Get the events with the given id and a sequence number equal or greater than the given one
+     * and less than the given upper bound
+     */
+    List<WebSocketEvent> lookup(CorrelationId key, String id, long seq, long toSeq) {
+        ConcurrentSkipListMap<Long, WebSocketEvent> matches = index.get(key).get(id);
+        if (matches == null)
+            return Collections.emptyList();
+        return unexpired(matches.subMap(seq, toSeq));
+    }
+
+    private List<WebSocketEvent> unexpired(ConcurrentNavigableMap<Long, WebSocketEvent> range) {
+        if (range.isEmpty())
+            return Collections.emptyList();
+        long minReceivedAt = minReceivedAt(System.currentTimeMillis());
+        List<WebSocketEvent> result = new ArrayList<>();
+        for (WebSocketEvent ev : range.values()) {
+            if (ev.getReceivedAt() >= minReceivedAt)
+                result.add(ev);
+        }
+        return result;
+    }
+
+    private long minReceivedAt(long now) {
+        RecordingPolicy policy = this.policy;
+        return policy.getMaxAge() != null ? now - policy.getMaxAge().toMillis() : Long.MIN_VALUE;
+    }
+
+    private void signalReaders() {
+        CompletableFuture<Void> f = signal.getAndSet(null);
+        if (f != null)
+            f.complete(null);
+    }
+
+    private void evict(long now) {
+        RecordingPolicy policy = this.policy;
+        int maxEvents = policy.getMaxEvents();
+        long maxBytes = policy.getMaxBytes();
+        long minReceivedAt = minReceivedAt(now);
+        while (size > 0) {
+            Map.Entry<Long, WebSocketEvent> head = events.firstEntry();
+            WebSocketEvent ev = head.getValue();
+            boolean evict = (maxEvents > 0 && size > maxEvents)
+                    || (maxBytes > 0 && bytes > maxBytes)
+                    || ev.getReceivedAt() < minReceivedAt;
+            if (!evict)
+                break;
+            events.remove(head.getKey());
+            unindex(ev);
+            size--;
+            bytes -= ev.getPayloadSize();
+            dropped++;
+        }
+    }
+
+    private void unindex(WebSocketEvent ev) {
+        for (CorrelationId key : CorrelationId.values()) {
+            String id = ev.getCorrelationId(key);
+            if (id != null) {
+                index.get(key).computeIfPresent(id, (k, matches) -> {
+                    matches.remove(ev.getSeq());
+                    return matches.isEmpty() ? null : matches;
+                });
+            }
+        }
+    }
+}
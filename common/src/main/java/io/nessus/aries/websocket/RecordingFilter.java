@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import org.hyperledger.aries.config.GsonConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+import io.nessus.aries.websocket.WebSocketListener.WebSocketEvent;
+
+/**
+ * Selects the events that get recorded and optionally reduces their payload.
+ *
+ * A projected event no longer refers to the received frame. It carries the projected payload. 
+ * Its estimated size is the frame length, scaled by the ratio of projected to full size. Only a 
+ * sample of the projections is serialized to measure that ratio. The ids, by which recorded 
+ * events are indexed, are taken from the full payload before projection.
+ */
+class RecordingFilter<T> {
+
+    static final Logger log = LoggerFactory.getLogger(RecordingFilter.class);
+
+    private static final Gson gson = GsonConfig.defaultConfig();
+
+    // Serialize every n-th projection to measure the size ratio
+    private static final int SAMPLE_INTERVAL = 64;
+
+    private final Class<T> payloadType;
+    private final Predicate<T> predicate;
+    private final UnaryOperator<T> projection;
+    private final AtomicLong projections = new AtomicLong();
+    private volatile double sizeRatio = 1.0;
+
+    RecordingFilter(Class<T> payloadType, Predicate<T> predicate, UnaryOperator<T> projection) {
+        this.payloadType = payloadType;
+        this.predicate = predicate;
+        this.projection = projection;
+    }
+
+    /**
+     * Get the event to be recorded for the given event, or null if it should not be recorded
+     */
+    WebSocketEvent apply(WebSocketEvent ev) {
+        try {
+            if (projection != null) {
+                // Extract the ids while the raw payload is still available
+                ev.getCorrelationId(CorrelationId.CONNECTION_ID);
+            }
+            T payload = ev.getPayload(payloadType);
+            if (predicate != null && !predicate.test(payload))
+                return null;
+            if (projection == null)
+                return ev;
+            T projected = projection.apply(payload);
+            return projected != null ? ev.project(projected, estimateSize(ev, projected)) : null;
+        } catch (RuntimeException ex) {
+            log.warn("Cannot filter {} event: {}", ev.getTopic(), ex.toString());
+            return null;
+        }
+    }
+
+    private int estimateSize(WebSocketEvent ev, T projected) {
+        int frameSize = ev.getPayloadSize();
+        long count = projections.getAndIncrement();
+        if (count % SAMPLE_INTERVAL == 0 && frameSize > 0) {
+            int size = gson.toJson(projected).length();
+            double ratio = Math.min(1.0, (double) size / frameSize);
+            // The first sample replaces the initial ratio, later ones are averaged
+            sizeRatio = count == 0 ? ratio : (sizeRatio + ratio) / 2;
+            return size;
+        }
+        return (int) Math.ceil(frameSize * sizeRatio);
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingFilter [" + payloadType.getSimpleName() + ", projection=" + (projection != null) + "]";
+    }
+}
@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.time.Duration;
+
+import io.nessus.aries.util.AssertArg;
+
+/**
+ * Resource limits for the events recorded per event type.
+ *
+ * When a limit is exceeded, the oldest recorded events are evicted first.
+ * The size of an event is estimated from the length of its WebSocket frame.
+ */
+public class RecordingPolicy {
+
+    public static final RecordingPolicy UNBOUNDED = builder().build();
+
+    private final int maxEvents;
+    private final Duration maxAge;
+    private final long maxBytes;
+
+    // Hide ctor
+    private RecordingPolicy(int maxEvents, Duration maxAge, long maxBytes) {
+        this.maxEvents = maxEvents;
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+    }
+
+    public static RecordingPolicyBuilder builder() {
+        return new RecordingPolicyBuilder();
+    }
+
+    /**
+     * The max number of recorded events, or zero for no limit
+     */
+    public int getMaxEvents() {
+        return maxEvents;
+    }
+
+    /**
+     * The max age of recorded events, or null for no limit
+     */
+    public Duration getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * The max estimated size of recorded events, or zero for no limit
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isUnbounded() {
+        return maxEvents == 0 && maxAge == null && maxBytes == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingPolicy [maxEvents=" + maxEvents + ", maxAge=" + maxAge + ", maxBytes=" + maxBytes + "]";
+    }
+
+    public static class RecordingPolicyBuilder {
+
+        private int maxEvents;
+        private Duration maxAge;
+        private long maxBytes;
+
+        public RecordingPolicyBuilder maxEvents(int maxEvents) {
+            AssertArg.isTrue(maxEvents >= 0, "Invalid maxEvents: " + maxEvents);
+            this.maxEvents = maxEvents;
+            return this;
+        }
+
+        public RecordingPolicyBuilder maxAge(Duration maxAge) {
+            AssertArg.isTrue(maxAge == null || !maxAge.isNegative(), "Invalid maxAge: " + maxAge);
+            this.maxAge = maxAge;
+            return this;
+        }
+
+        public RecordingPolicyBuilder maxBytes(long maxBytes) {
+            AssertArg.isTrue(maxBytes >= 0, "Invalid maxBytes: " + maxBytes);
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public RecordingPolicy build() {
+            return new RecordingPolicy(maxEvents, maxAge, maxBytes);
+        }
+    }
+}
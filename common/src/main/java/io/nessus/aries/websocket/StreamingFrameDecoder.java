@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.function.Function;
+
+import org.hyperledger.aries.config.GsonConfig;
+import org.hyperledger.aries.webhook.EventType;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Decodes a frame in a single pass.
+ * 
+ * The `topic` and `wallet_id` fields are read as they stream by and the `payload` is bound 
+ * straight to its type, without building a JSON tree. Only in the unusual case that the 
+ * payload precedes the topic, the payload is buffered as a JSON tree and bound afterwards.
+ * The payload text is not kept, an event serializes its payload at most once when needed.
+ */
+public class StreamingFrameDecoder implements WebSocketFrameDecoder {
+
+    private static final Gson gson = GsonConfig.defaultConfig();
+
+    @Override
+    public WebSocketFrame decode(String message, Function<String, Class<?>> payloadTypes) {
+        String topic = null;
+        String walletId = null;
+        Object payload = null;
+        JsonElement deferred = null;
+        boolean hasPayload = false;
+        try (JsonReader reader = new JsonReader(new StringReader(message))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("topic".equals(name)) {
+                    topic = nextString(reader);
+                } else if ("wallet_id".equals(name)) {
+                    walletId = nextString(reader);
+                } else if ("payload".equals(name)) {
+                    hasPayload = true;
+                    if (topic != null && !EventType.PING.topicEquals(topic)) {
+                        payload = readPayload(reader, payloadTypes.apply(topic));
+                    } else {
+                        deferred = JsonParser.parseReader(reader);
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException ex) {
+            throw new JsonSyntaxException(ex);
+        }
+        if (topic == null)
+            throw new JsonSyntaxException("No topic in: " + message);
+        boolean ping = EventType.PING.topicEquals(topic);
+        if (!hasPayload && !ping) {
+            deferred = new JsonObject();
+        }
+        if (deferred != null && !(ping && isEmptyObject(deferred))) {
+            Class<?> type = payloadTypes.apply(topic);
+            payload = type != null ? gson.fromJson(deferred, type) : null;
+        }
+        return new WebSocketFrame(topic, walletId, payload, message.length());
+    }
+
+    private Object readPayload(JsonReader reader, Class<?> type) throws IOException {
+        if (type == null || reader.peek() == JsonToken.NULL) {
+            reader.skipValue();
+            return null;
+        }
+        return gson.fromJson(reader, type);
+    }
+
+    private String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private boolean isEmptyObject(JsonElement el) {
+        return el.isJsonNull() || (el.isJsonObject() && el.getAsJsonObject().size() == 0);
+    }
+}
@@ -0,0 +1,61 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.util.function.Function;
+
+import org.hyperledger.aries.BaseClient;
+import org.hyperledger.aries.config.GsonConfig;
+import org.hyperledger.aries.webhook.EventParser;
+import org.hyperledger.aries.webhook.EventType;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+/**
+ * Decodes a frame into a JSON tree and then parses the serialized payload into its type.
+ * 
+ * This is the original decoding path. It is retained for comparison with the {@link StreamingFrameDecoder}.
+ */
+public class TreeFrameDecoder implements WebSocketFrameDecoder {
+
+    private static final Gson gson = GsonConfig.defaultConfig();
+
+    private final EventParser parser = new EventParser();
+
+    @Override
+    public WebSocketFrame decode(String message, Function<String, Class<?>> payloadTypes) {
+        JsonObject json = gson.fromJson(message, JsonObject.class);
+        String walletId = json.has("wallet_id") ? json.get("wallet_id").getAsString() : null;
+        String payload = json.has("payload") ? json.get("payload").toString() : BaseClient.EMPTY_JSON;
+        String topic = json.get("topic").getAsString();
+        Object value = null;
+        if (!(EventType.PING.topicEquals(topic) && BaseClient.EMPTY_JSON.equals(payload))) {
+            Class<?> type = payloadTypes.apply(topic);
+            if (type != null) {
+                value = parser.parseValueSave(payload, type)
+                        .orElseThrow(() -> new JsonParseException("Cannot parse payload for: " + topic));
+            }
+        }
+        // Keep the payload text, so that it is not serialized again to extract ids and states
+        return new WebSocketFrame(topic, walletId, value, payload, message.length());
+    }
+}
@@ -1,9 +1,19 @@
 package io.nessus.aries.websocket;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 
+import org.hyperledger.aries.AriesClient;
 import org.hyperledger.aries.api.connection.ConnectionRecord;
 import org.hyperledger.aries.api.discover_features.DiscoverFeatureEvent;
 import org.hyperledger.aries.api.endorser.EndorseTransactionRecord;
@@ -26,11 +36,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.nessus.aries.AgentConfiguration;
+import io.nessus.aries.AriesClientFactory;
+import io.nessus.aries.HttpClientFactory;
+import io.nessus.aries.SharedWebSocketClient;
 import io.nessus.aries.util.AssertArg;
 import io.nessus.aries.util.AssertState;
+import io.nessus.aries.util.KeyedExecutor;
 import io.nessus.aries.wallet.NessusWallet;
+import io.nessus.aries.websocket.WebSocketListener.WebSocketState;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.Response;
 import okhttp3.WebSocket;
 
 /**
@@ -38,15 +54,39 @@ import okhttp3.WebSocket;
  * 
  * This client is associated with a given WebSocketListener, which can be used to record 
  * WebSocket events by event type.
+ * 
+ * Instead of opening its own WebSocket, the client can also subscribe its listener to a 
+ * shared {@link WebSocketHub} that multiplexes the events for many wallets.
+ * 
+ * With a {@link ReconnectPolicy}, the client reconnects when the WebSocket fails or is closed
+ * by the agent. Recorded events and pending awaits survive the outage.
+ * 
+ * A WebSocket that did not receive a frame within the configured liveness timeout is failed
+ * (and reconnected, if there is a policy). Otherwise a half-open connection would look open forever.
  */
-public class WebSocketClient {
+public class WebSocketClient implements AutoCloseable {
 
     static final Logger log = LoggerFactory.getLogger(WebSocketClient.class);
 
+    // Short timer tasks only, i.e. reconnects and liveness checks
+    private static ScheduledExecutorService reconnectExecutor;
+    // Resyncs, which block on REST calls to the agent
+    private static ExecutorService resyncExecutor;
+
     private final AgentConfiguration agentConfig;
     private final NessusWallet wallet;
     private WebSocketListener wslistener;
     private WebSocket webSocket;
+    private WebSocketHub wshub;
+    private SharedWebSocketClient sharedClient;
+    private ReconnectPolicy reconnectPolicy;
+    private ScheduledFuture<?> reconnectTask;
+    private ScheduledFuture<?> livenessTask;
+    private int livenessFailures;
+    private volatile boolean closed;
+    private int attempts;
+    private int reconnectCount;
+    private long outageStart;
     
     /**
      *  
@@ -58,7 +98,7 @@ public class WebSocketClient {
 	}
 
     public WebSocket getWebSocket() {
-		return webSocket;
+		return wshub != null ? wshub.getWebSocket() : webSocket;
 	}
 
 	public WebSocketListener getWebSocketListener() {
@@ -66,7 +106,59 @@ public class WebSocketClient {
 	}
 
 	public void openWebSocket(WebSocketListener listener) {
+		openWebSocket(listener, null);
+	}
+
+	/**
+	 * Open the WebSocket and reconnect according to the given policy, which may be null
+	 */
+	public synchronized void openWebSocket(WebSocketListener listener, ReconnectPolicy policy) {
     	AssertArg.notNull(listener, "No listener");
+    	AssertState.isTrue(webSocket == null && wshub == null, "Already connected");
+        wslistener = listener;
+        reconnectPolicy = policy;
+        closed = false;
+        webSocket = connect(policy != null ? new ReconnectingListener() : listener);
+        Duration timeout = agentConfig.getWebSocketLivenessTimeout();
+        if (timeout != null) {
+        	long period = Math.max(10, timeout.toMillis() / 4);
+        	livenessTask = reconnectExecutor().scheduleAtFixedRate(this::checkLiveness, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+	public ReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
+	/**
+	 * The number of successful reconnects
+	 */
+	public synchronized int getReconnectCount() {
+		return reconnectCount;
+	}
+
+	/**
+	 * The number of WebSockets that were failed, because they exceeded the liveness timeout
+	 */
+	public synchronized int getLivenessFailures() {
+		return livenessFailures;
+	}
+
+	/**
+	 * The millis since the last frame was received, or -1
+	 */
+	public long getLastFrameAge() {
+		return wslistener != null ? wslistener.getLastFrameAge() : -1;
+	}
+
+	/**
+	 * The round trip time of the latest WebSocket handshake in millis, or -1
+	 */
+	public long getRoundTripMillis() {
+		return wslistener != null ? wslistener.getRoundTripMillis() : -1;
+	}
+
+	private WebSocket connect(okhttp3.WebSocketListener listener) {
         Request.Builder b = new Request.Builder();
         b.url(agentConfig.getWebSocketUrl());
         if (agentConfig.getApiKey() != null) {
@@ -76,16 +168,111 @@ public class WebSocketClient {
             b.header("Authorization", "Bearer " + wallet.getToken());
         }
         Request request = b.build();
-        OkHttpClient httpClient = new OkHttpClient();
-        webSocket = httpClient.newWebSocket(request, listener);
-        wslistener = listener;
+        OkHttpClient httpClient = agentConfig.getWebSocketClient();
+        if (httpClient == null) {
+            // The lease is kept across reconnects and released on close
+            if (sharedClient == null)
+                sharedClient = HttpClientFactory.acquireWebSocketClient(agentConfig.getWebSocketPingInterval());
+            httpClient = sharedClient.getHttpClient();
+        }
+        return httpClient.newWebSocket(request, listener);
     }
 
-	public void close() {
+	/**
+	 * Route the events for this client's wallet from the given hub to the given listener
+	 */
+	public void subscribeTo(WebSocketHub hub, WebSocketListener listener) {
+    	AssertArg.notNull(hub, "No hub");
+    	AssertArg.notNull(listener, "No listener");
+    	AssertState.notNull(wallet, "No wallet");
+    	AssertState.isTrue(webSocket == null && wshub == null, "Already connected");
+    	hub.subscribe(wallet.getWalletId(), listener);
+    	wslistener = listener;
+    	wshub = hub;
+	}
+	
+	public synchronized void close() {
+		closed = true;
+		if (reconnectTask != null) {
+			reconnectTask.cancel(false);
+			reconnectTask = null;
+		}
+		if (livenessTask != null) {
+			livenessTask.cancel(false);
+			livenessTask = null;
+		}
 		if (webSocket != null) {
 			webSocket.close(1001, null);
 			webSocket = null;
 		}
+		if (wshub != null) {
+			wshub.unsubscribe(wallet.getWalletId(), wslistener);
+			wshub = null;
+		}
+		if (sharedClient != null) {
+			sharedClient.close();
+			sharedClient = null;
+		}
+	}
+
+	/**
+	 * Restrict the handled topics to the given event types
+	 */
+	public WebSocketClient subscribeTopics(EventType... evtypes) {
+		AssertState.notNull(wslistener, "Not connected");
+		wslistener.setSubscribedTopics(evtypes);
+		return this;
+	}
+
+	/**
+	 * Run event handlers on the given executor, ordered per wallet
+	 */
+	public WebSocketClient handlerExecutor(KeyedExecutor executor) {
+		AssertState.notNull(wslistener, "Not connected");
+		wslistener.setHandlerExecutor(executor);
+		return this;
+	}
+
+	/**
+	 * Drop duplicate and, optionally, stale events of connections and exchanges
+	 */
+	public WebSocketClient eventDeduplicator(EventDeduplicator deduplicator) {
+		AssertState.notNull(wslistener, "Not connected");
+		wslistener.setEventDeduplicator(deduplicator);
+		return this;
+	}
+
+	/**
+	 * Keep the latest state of connections and exchanges in the given store
+	 */
+	public WebSocketClient exchangeStateStore(ExchangeStateStore stateStore) {
+		AssertState.notNull(wslistener, "Not connected");
+		wslistener.setExchangeStateStore(stateStore);
+		return this;
+	}
+
+	/**
+	 * Open a cursor that reads the events of the given type, which are recorded from now on
+	 */
+	public <T> EventCursor<T> openCursor(EventType evtype, Class<T> payloadType) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.openCursor(evtype, payloadType);
+	}
+
+	/**
+	 * Publish the events of the given types, or all events if none are given. 
+	 * Subscribers that fall behind get all events buffered.
+	 */
+	public EventPublisher publisher(EventType... evtypes) {
+		return publisher(EventPublisher.builder().eventTypes(evtypes).build());
+	}
+
+	/**
+	 * Publish events through the given publisher, which defines filters and the overflow strategy
+	 */
+	public EventPublisher publisher(EventPublisher publisher) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.addPublisher(publisher);
 	}
 
 	public WebSocketClient startRecording(EventType... evtypes) {
@@ -94,6 +281,21 @@ public class WebSocketClient {
 		return this;
 	}
 
+	public WebSocketClient startRecording(RecordingPolicy policy, EventType... evtypes) {
+		AssertState.notNull(wslistener, "Not connected");
+		wslistener.startRecording(policy, evtypes);
+		return this;
+	}
+
+	/**
+	 * Record the events of the given type that match the given filter, optionally projected to the fields needed later
+	 */
+	public <T> WebSocketClient startRecording(EventType evtype, Class<T> payloadType, Predicate<T> filter, UnaryOperator<T> projection) {
+		AssertState.notNull(wslistener, "Not connected");
+		wslistener.startRecording(null, evtype, payloadType, filter, projection);
+		return this;
+	}
+
 	public WebSocketClient retartRecording(EventType... evtypes) {
 		AssertState.notNull(wslistener, "Not connected");
 		wslistener.startRecording(evtypes);
@@ -190,4 +392,300 @@ public class WebSocketClient {
 		AssertState.notNull(wslistener, "Not connected");
 		return wslistener.awaitTrustPing(predicate, timeout, unit);
 	}
+
+	public CompletableFuture<BasicMessage> awaitBasicMessageAsync(Predicate<BasicMessage> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitBasicMessageAsync(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<ConnectionRecord> awaitConnectionAsync(Predicate<ConnectionRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitConnectionAsync(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<DiscoverFeatureEvent> awaitDiscoveredFeatureAsync(Predicate<DiscoverFeatureEvent> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitDiscoveredFeatureAsync(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<EndorseTransactionRecord> awaitEndorseTransactionAsync(Predicate<EndorseTransactionRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitEndorseTransactionAsync(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V1CredentialExchange> awaitIssueCredentialV1Async(Predicate<V1CredentialExchange> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitIssueCredentialV1Async(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V20CredExRecord> awaitIssueCredentialV2Async(Predicate<V20CredExRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitIssueCredentialV2Async(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V2IssueIndyCredentialEvent> awaitIssueCredentialV2IndyAsync(Predicate<V2IssueIndyCredentialEvent> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitIssueCredentialV2IndyAsync(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V2IssueLDCredentialEvent> awaitIssueCredentialV2LDAsync(Predicate<V2IssueLDCredentialEvent> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitIssueCredentialV2LDAsync(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<RevocationEvent> awaitIssuerRevocationAsync(Predicate<RevocationEvent> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitIssuerRevocationAsync(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<PresentationExchangeRecord> awaitPresentProofV1Async(Predicate<PresentationExchangeRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitPresentProofV1Async(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V20PresExRecord> awaitPresentProofV2Async(Predicate<V20PresExRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitPresentProofV2Async(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<ProblemReport> awaitProblemReportAsync(Predicate<ProblemReport> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitProblemReportAsync(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<RevocationNotificationEvent> awaitRevocationNotificationV1Async(Predicate<RevocationNotificationEvent> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitRevocationNotificationV1Async(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<RevocationNotificationEventV2> awaitRevocationNotificationV2Async(Predicate<RevocationNotificationEventV2> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitRevocationNotificationV2Async(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<RevocationRegistryState> awaitRevocationRegistryAsync(Predicate<RevocationRegistryState> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitRevocationRegistryAsync(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<Settings> awaitSettingsAsync(Predicate<Settings> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitSettingsAsync(predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<PingEvent> awaitTrustPingAsync(Predicate<PingEvent> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitTrustPingAsync(predicate, timeout, unit);
+	}
+
+	// Awaits for a single connection or exchange, which use the listener's correlation-id index
+	
+	public Stream<ConnectionRecord> awaitConnection(String connectionId, Predicate<ConnectionRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitConnection(connectionId, predicate, timeout, unit);
+	}
+	
+	public Stream<V1CredentialExchange> awaitIssueCredentialV1(String credExId, Predicate<V1CredentialExchange> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitIssueCredentialV1(credExId, predicate, timeout, unit);
+	}
+	
+	public Stream<V20CredExRecord> awaitIssueCredentialV2(String credExId, Predicate<V20CredExRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitIssueCredentialV2(credExId, predicate, timeout, unit);
+	}
+	
+	public Stream<PresentationExchangeRecord> awaitPresentProofV1(String presExId, Predicate<PresentationExchangeRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitPresentProofV1(presExId, predicate, timeout, unit);
+	}
+	
+	public Stream<V20PresExRecord> awaitPresentProofV2(String presExId, Predicate<V20PresExRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitPresentProofV2(presExId, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<ConnectionRecord> awaitConnectionAsync(String connectionId, Predicate<ConnectionRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitConnectionAsync(connectionId, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V1CredentialExchange> awaitIssueCredentialV1Async(String credExId, Predicate<V1CredentialExchange> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitIssueCredentialV1Async(credExId, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V20CredExRecord> awaitIssueCredentialV2Async(String credExId, Predicate<V20CredExRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitIssueCredentialV2Async(credExId, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<PresentationExchangeRecord> awaitPresentProofV1Async(String presExId, Predicate<PresentationExchangeRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitPresentProofV1Async(presExId, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V20PresExRecord> awaitPresentProofV2Async(String presExId, Predicate<V20PresExRecord> predicate, long timeout, TimeUnit unit) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitPresentProofV2Async(presExId, predicate, timeout, unit);
+	}
+
+	/**
+	 * Await the matching events of all given conditions, with a single deadline
+	 */
+	public CompletableFuture<List<Object>> awaitAllAsync(long timeout, TimeUnit unit, EventCondition<?>... conditions) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitAllAsync(timeout, unit, conditions);
+	}
+	
+	/**
+	 * Await the first matching event of any of the given conditions
+	 */
+	public CompletableFuture<Object> awaitAnyAsync(long timeout, TimeUnit unit, EventCondition<?>... conditions) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitAnyAsync(timeout, unit, conditions);
+	}
+	
+	/**
+	 * Await the matching events of the given conditions in the given order, with a single deadline
+	 */
+	public CompletableFuture<List<Object>> awaitSequenceAsync(long timeout, TimeUnit unit, EventCondition<?>... conditions) {
+		AssertState.notNull(wslistener, "Not connected");
+		return wslistener.awaitSequenceAsync(timeout, unit, conditions);
+	}
+
+	private synchronized void connectionLost(WebSocket ws, String reason) {
+		// Ignore late callbacks from a socket that was already replaced
+		if (closed || ws != webSocket)
+			return;
+		if (attempts == 0) {
+			long lastFrameAt = wslistener.getLastFrameAt();
+			outageStart = lastFrameAt > 0 ? lastFrameAt : System.currentTimeMillis();
+		}
+		int maxAttempts = reconnectPolicy.getMaxAttempts();
+		if (maxAttempts > 0 && attempts >= maxAttempts) {
+			log.warn("{}: Giving up after {} reconnect attempts", wslistener.getLabel(), attempts);
+			webSocket = null;
+			wslistener.onClosed(ws, 1006, "Reconnect failed: " + reason);
+			return;
+		}
+		attempts++;
+		long delay = reconnectPolicy.getDelayMillis(attempts);
+		log.info("{}: WebSocket lost ({}), reconnect attempt {} in {}ms", wslistener.getLabel(), reason, attempts, delay);
+		wslistener.setWebSocketState(WebSocketState.RECONNECTING);
+		reconnectTask = reconnectExecutor().schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Fail the WebSocket when it is open, but did not receive a frame within the liveness timeout.
+	 * The failure is then handled like any other, i.e. with a reconnect when there is a policy.
+	 */
+	private synchronized void checkLiveness() {
+		WebSocket ws = webSocket;
+		if (closed || ws == null || wslistener.getWebSocketState() != WebSocketState.OPEN)
+			return;
+		long age = wslistener.getLastFrameAge();
+		long timeout = agentConfig.getWebSocketLivenessTimeout().toMillis();
+		if (age > timeout) {
+			log.warn("{}: No frame received for {}ms, failing the WebSocket", wslistener.getLabel(), age);
+			livenessFailures++;
+			wslistener.setWebSocketState(WebSocketState.FAILED);
+			ws.cancel();
+		}
+	}
+
+	private synchronized void reconnect() {
+		reconnectTask = null;
+		if (!closed) {
+			webSocket = connect(new ReconnectingListener());
+		}
+	}
+
+	private synchronized void connectionOpened(WebSocket ws) {
+		boolean reconnected = attempts > 0;
+		attempts = 0;
+		if (reconnected) {
+			reconnectCount++;
+			if (reconnectPolicy.isResync()) {
+				Instant since = Instant.ofEpochMilli(outageStart).minus(reconnectPolicy.getClockSkew());
+				resyncExecutor().execute(() -> resync(since));
+			}
+		}
+	}
+
+	private void resync(Instant since) {
+		try {
+			AriesClient client = AriesClientFactory.createClient(agentConfig, wallet);
+			new EventResync(client, wslistener, wallet != null ? wallet.getWalletId() : null).resync(since);
+		} catch (Exception ex) {
+			log.error(String.format("[%s] Resync failed", wslistener.getLabel()), ex);
+		}
+	}
+
+	private static synchronized ScheduledExecutorService reconnectExecutor() {
+		if (reconnectExecutor == null) {
+			reconnectExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread th = new Thread(r, "WebSocketReconnect");
+				th.setDaemon(true);
+				return th;
+			});
+		}
+		return reconnectExecutor;
+	}
+
+	private static synchronized ExecutorService resyncExecutor() {
+		if (resyncExecutor == null) {
+			resyncExecutor = Executors.newCachedThreadPool(r -> {
+				Thread th = new Thread(r, "WebSocketResync");
+				th.setDaemon(true);
+				return th;
+			});
+		}
+		return resyncExecutor;
+	}
+
+	/**
+	 * Forwards to the client's listener, but handles failures and closes 
+	 * that were not initiated by the client with a reconnect.
+	 */
+	class ReconnectingListener extends okhttp3.WebSocketListener {
+
+		@Override
+		public void onOpen(WebSocket ws, Response response) {
+			connectionOpened(ws);
+			wslistener.onOpen(ws, response);
+		}
+
+		@Override
+		public void onMessage(WebSocket ws, String text) {
+			wslistener.onMessage(ws, text);
+		}
+
+		@Override
+		public void onClosing(WebSocket ws, int code, String reason) {
+			if (closed) {
+				wslistener.onClosing(ws, code, reason);
+			} else {
+				ws.close(1000, null);
+			}
+		}
+
+		@Override
+		public void onClosed(WebSocket ws, int code, String reason) {
+			if (closed) {
+				wslistener.onClosed(ws, code, reason);
+			} else {
+				connectionLost(ws, code + " " + reason);
+			}
+		}
+
+		@Override
+		public void onFailure(WebSocket ws, Throwable th, Response response) {
+			if (closed) {
+				wslistener.onFailure(ws, th, response);
+			} else {
+				connectionLost(ws, response != null ? response.message() : String.valueOf(th));
+			}
+		}
+	}
 }
@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import org.hyperledger.aries.config.GsonConfig;
+import org.hyperledger.aries.webhook.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * A decoded WebSocket frame as sent by the agent.
+ * 
+ * The payload is either bound by the decoder to the type registered for the frame's topic,
+ * or kept as raw JSON text and bound on first access. A bound payload is null when the 
+ * topic is not supported or when the frame does not carry a payload.
+ * 
+ * A raw payload that cannot be bound is logged once. Every access then fails with the same
+ * JsonParseException, without parsing the payload again.
+ */
+public class WebSocketFrame {
+
+    static final Logger log = LoggerFactory.getLogger(WebSocketFrame.class);
+
+    private static final Gson gson = GsonConfig.defaultConfig();
+
+    private final String topic;
+    private final String walletId;
+    private final int size;
+    private final String payloadJson;
+    private volatile String rawPayload;
+    private volatile Object payload;
+    private volatile JsonParseException bindFailure;
+
+    public WebSocketFrame(String topic, String walletId, Object payload, int size) {
+        this(topic, walletId, payload, null, size);
+    }
+
+    /**
+     * Create a frame with a bound payload, together with the payload's JSON text as received
+     */
+    public WebSocketFrame(String topic, String walletId, Object payload, String payloadJson, int size) {
+        this.topic = topic;
+        this.walletId = walletId;
+        this.payload = payload;
+        this.payloadJson = payloadJson;
+        this.size = size;
+    }
+
+    /**
+     * Create a frame with a payload that is bound on first access
+     */
+    public static WebSocketFrame lazy(String topic, String walletId, String rawPayload, int size) {
+        WebSocketFrame frame = new WebSocketFrame(topic, walletId, null, size);
+        frame.rawPayload = rawPayload;
+        return frame;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public String getWalletId() {
+        return walletId;
+    }
+
+    /**
+     * The bound payload, or null if the payload has not been bound yet
+     */
+    public Object getPayload() {
+        return payload;
+    }
+
+    /**
+     * Get the payload bound to the given type. 
+     * A lazy payload is bound on first access and the result is cached. 
+     * 
+     * @throws JsonParseException if the raw payload cannot be bound to the given type
+     */
+    public <T> T getPayload(Class<T> type) {
+        if (rawPayload != null || bindFailure != null) {
+            synchronized (this) {
+                String json = rawPayload;
+                if (json != null && bindFailure == null) {
+                    try {
+                        payload = gson.fromJson(json, type);
+                        rawPayload = null;
+                    } catch (RuntimeException ex) {
+                        log.warn("Cannot bind {} payload: {}", topic, ex.toString());
+                        bindFailure = ex instanceof JsonParseException ? (JsonParseException) ex : new JsonParseException(ex);
+                    }
+                }
+                if (bindFailure != null)
+                    throw bindFailure;
+            }
+        }
+        return type.cast(payload);
+    }
+
+    /**
+     * True if the payload is bound, or can be bound to the given type
+     */
+    public boolean isBindable(Class<?> type) {
+        try {
+            getPayload(type);
+            return true;
+        } catch (JsonParseException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * The raw JSON payload, or null if the payload has been bound already
+     */
+    public String getRawPayload() {
+        return rawPayload;
+    }
+
+    /**
+     * The payload's JSON text as received, or null if the decoder did not keep it, 
+     * or a lazy payload has been bound already
+     */
+    public String getPayloadJson() {
+        String json = rawPayload;
+        return json != null ? json : payloadJson;
+    }
+
+    /**
+     * The length of the raw frame
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * True for WebSocket keep-alive pings, not to be confused with aca-py trust ping messages
+     * 
+     * https://datatracker.ietf.org/doc/html/rfc6455#section-5.5.2
+     */
+    public boolean isWsPing() {
+        return payload == null && rawPayload == null && EventType.PING.topicEquals(topic);
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocketFrame [topic=" + topic + ", walletId=" + walletId + ", size=" + size + "]";
+    }
+}
@@ -0,0 +1,39 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.util.function.Function;
+
+/**
+ * Decodes the raw text of a WebSocket frame.
+ */
+@FunctionalInterface
+public interface WebSocketFrameDecoder {
+
+    /**
+     * Decode the given message and bind its payload to the type that the resolver returns for the topic.
+     * A null payload type means that the payload is not needed.
+     * 
+     * An empty payload for the ping topic is decoded as a null payload.
+     * 
+     * @throws com.google.gson.JsonParseException if the message cannot be decoded
+     */
+    WebSocketFrame decode(String message, Function<String, Class<?>> payloadTypes);
+}
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.websocket;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import io.nessus.aries.AgentConfiguration;
+import io.nessus.aries.util.AssertArg;
+import io.nessus.aries.util.AssertState;
+import io.nessus.aries.wallet.WalletRegistry;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+
+/**
+ * An agent-level event hub that multiplexes the events for many tenant wallets
+ * over a single admin WebSocket.
+ *
+ * Each incoming frame is parsed once. The event is then routed by its `wallet_id`
+ * to the listeners that subscribed for that wallet. Events for wallets without
+ * a subscriber are dropped.
+ *
+ * With the default {@link LazyFrameDecoder}, payloads are bound by the subscribed listeners
+ * and frames for wallets without a subscriber are never bound at all. An eager decoder binds
+ * payloads to the types registered with the hub.
+ *
+ * Per-wallet listeners do not own a WebSocket. They receive the lifecycle callbacks
+ * of the shared connection and otherwise work as usual (i.e. handle, record and await events).
+ */
+public class WebSocketHub extends WebSocketListener implements AutoCloseable {
+
+    private final Map<String, List<WebSocketListener>> subscribers = new ConcurrentHashMap<>();
+    private final AgentConfiguration agentConfig;
+    private WebSocketClient wsclient;
+
+    public WebSocketHub(AgentConfiguration agentConfig, WalletRegistry walletRegistry) {
+        super("WebSocketHub", walletRegistry, null);
+        AssertArg.notNull(agentConfig, "No agentConfig");
+        this.agentConfig = agentConfig;
+    }
+
+    public AgentConfiguration getAgentConfiguration() {
+        return agentConfig;
+    }
+
+    public WebSocketHub openWebSocket() {
+        return openWebSocket(null);
+    }
+
+    /**
+     * Open the shared WebSocket and reconnect according to the given policy.
+     * The hub does not resync missed events, because it has no access to the tenant wallets.
+     */
+    public synchronized WebSocketHub openWebSocket(ReconnectPolicy policy) {
+        AssertState.isNull(wsclient, "WebSocket already open");
+        wsclient = new WebSocketClient(agentConfig, null);
+        wsclient.openWebSocket(this, policy);
+        return this;
+    }
+
+    public synchronized WebSocket getWebSocket() {
+        return wsclient != null ? wsclient.getWebSocket() : null;
+    }
+
+    public void subscribe(String walletId, WebSocketListener listener) {
+        AssertArg.notNull(walletId, "No walletId");
+        AssertArg.notNull(listener, "No listener");
+        listener.setWebSocketState(getWebSocketState());
+        subscribers.computeIfAbsent(walletId, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    public void unsubscribe(String walletId, WebSocketListener listener) {
+        subscribers.computeIfPresent(walletId, (k, v) -> {
+            v.remove(listener);
+            return v.isEmpty() ? null : v;
+        });
+    }
+
+    public boolean hasSubscribers(String walletId) {
+        return subscribers.containsKey(walletId);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (wsclient != null) {
+            wsclient.close();
+            wsclient = null;
+        }
+    }
+
+    @Override
+    protected void dispatchEvent(WebSocketFrame frame) {
+        String walletId = frame.getWalletId();
+        List<WebSocketListener> listeners = walletId != null ? subscribers.get(walletId) : null;
+        if (listeners != null) {
+            listeners.forEach(l -> l.dispatchEvent(frame));
+        } else {
+            log.trace("{}: No subscriber for [{}] {}", getLabel(), walletId, frame.getTopic());
+        }
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+        super.onOpen(webSocket, response);
+        forEachSubscriber(l -> l.onOpen(webSocket, response));
+    }
+
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+        super.onClosing(webSocket, code, reason);
+        forEachSubscriber(l -> l.onClosing(webSocket, code, reason));
+    }
+
+    @Override
+    public void onClosed(WebSocket webSocket, int code, String reason) {
+        super.onClosed(webSocket, code, reason);
+        forEachSubscriber(l -> l.onClosed(webSocket, code, reason));
+    }
+
+    @Override
+    public void onFailure(WebSocket webSocket, Throwable th, Response response) {
+        super.onFailure(webSocket, th, response);
+        forEachSubscriber(l -> l.onFailure(webSocket, th, response));
+    }
+
+    private void forEachSubscriber(Consumer<WebSocketListener> action) {
+        subscribers.values().forEach(list -> list.forEach(action));
+    }
+}
@@ -1,18 +1,32 @@
 package io.nessus.aries.websocket;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 
-import org.hyperledger.aries.BaseClient;
 import org.hyperledger.aries.api.connection.ConnectionRecord;
 import org.hyperledger.aries.api.discover_features.DiscoverFeatureEvent;
 import org.hyperledger.aries.api.endorser.EndorseTransactionRecord;
@@ -31,18 +45,19 @@ import org.hyperledger.aries.api.revocation.RevocationRegistryState;
 import org.hyperledger.aries.api.settings.Settings;
 import org.hyperledger.aries.api.trustping.PingEvent;
 import org.hyperledger.aries.config.GsonConfig;
-import org.hyperledger.aries.webhook.EventParser;
 import org.hyperledger.aries.webhook.EventType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
+import io.nessus.aries.util.AssertArg;
 import io.nessus.aries.util.AssertState;
+import io.nessus.aries.util.HashedWheelTimer;
+import io.nessus.aries.util.KeyedExecutor;
 import io.nessus.aries.util.SafeConsumer;
-import io.nessus.aries.util.ThreadUtils;
 import io.nessus.aries.wallet.WalletRegistry;
 import okhttp3.Response;
 import okhttp3.WebSocket;
@@ -55,11 +70,32 @@ import okhttp3.WebSocket;
  * of this WebSocketListener would implement the various `handleFoo` methods and process events
  * as needed by the application.
  * 
+ * Each topic is resolved with a single lookup in a registry of topic handlers. Applications can 
+ * register handlers for additional topics, or replace the default ones, with `registerTopic`.
+ * 
  * This class can also start/stop recording of incomming events by event type. 
  * These recorded events can later be retrieved by the application.
  *  
- * Note, there is currently no resource limit on the volume of recorded events. This must 
- * be taken care of by the application doing the recording.
+ * Recording can be restricted to the events that match a predicate, optionally with a projection 
+ * of their payload, so that only what is needed later is kept.
+ * 
+ * By default, there is no resource limit on the volume of recorded events. A {@link RecordingPolicy}
+ * can be given to bound the recorded events per event type, in which case the oldest events get evicted.
+ * 
+ * Recorded events are indexed by {@link CorrelationId}, so that awaiting a single connection or 
+ * exchange does not scan the events of all others.
+ * 
+ * Composite awaits wait for all, any or a sequence of {@link EventCondition}s, which may span 
+ * several event types, with a single deadline.
+ * 
+ * An {@link EventCursor} reads recorded events incrementally. Unlike the `awaitFoo` methods, 
+ * which match from the first recorded event, it only returns what arrived since its last read.
+ * 
+ * An {@link EventDeduplicator} can drop re-emitted and out-of-order state transitions,
+ * before they are recorded and dispatched.
+ * 
+ * When only the current state of connections and exchanges is needed, an {@link ExchangeStateStore}
+ * keeps the latest record per id, instead of recording the full event history.
  */
 public class WebSocketListener extends okhttp3.WebSocketListener {
 
@@ -69,31 +105,76 @@ public class WebSocketListener extends okhttp3.WebSocketListener {
     private static final Gson pretty = GsonConfig.prettyPrinter();
     
     public enum WebSocketState {
-        NEW, OPEN, CLOSING, CLOSED
+        NEW, OPEN, FAILED, RECONNECTING, CLOSING, CLOSED
     }
-    private WebSocketState state = WebSocketState.NEW;
+    private volatile WebSocketState state = WebSocketState.NEW;
     
-    private final Map<EventType, List<WebSocketEvent>> recordedEvents = new HashMap<>();
-    private final Lock accessLock = new ReentrantLock();
-    private final EventParser parser = new EventParser();
+    // Copy-on-write, so that the reader thread can record without a lock
+    private volatile Map<EventType, RecordingBuffer> recordedEvents = new EnumMap<>(EventType.class);
+    private final Object recordingLock = new Object();
+    private final Map<EventType, Queue<PendingAwait<?>>> pendingAwaits = new ConcurrentHashMap<>();
     private final WalletRegistry walletRegistry;
-    private final List<String> walletIdFilter;
+    private final Set<String> walletIdFilter;
     private final String label;
+    private final Map<String, TopicHandler<?>> topicHandlers = new ConcurrentHashMap<>();
+    private RecordingPolicy recordingPolicy = RecordingPolicy.UNBOUNDED;
+    private WebSocketFrameDecoder frameDecoder = new LazyFrameDecoder();
+    private volatile Set<String> subscribedTopics;
+    private final LongAdder skippedFrames = new LongAdder();
+    private final AtomicLong arrivals = new AtomicLong();
+    private volatile KeyedExecutor handlerExecutor;
+    private volatile Function<WebSocketEvent, Object> handlerKey;
+    private volatile long lastFrameAt;
+    private volatile long openedAt;
+    private volatile long roundTripMillis = -1;
+    private final List<EventPublisher> publishers = new CopyOnWriteArrayList<>();
+    private volatile EventJournal journal;
+    private volatile EventDeduplicator deduplicator;
+    private volatile ExchangeStateStore stateStore;
 
     public WebSocketListener(String label, WalletRegistry walletRegistry, List<String> walletIdFilter) {
 		this.label = label;
 		this.walletRegistry = walletRegistry;
 		// [TODO] It should not be necessary to filter events targeted to other wallets
-		this.walletIdFilter = walletIdFilter != null ? new ArrayList<>(walletIdFilter) : null;
+		this.walletIdFilter = walletIdFilter != null ? new HashSet<>(walletIdFilter) : null;
+		registerDefaultTopics();
 	}
 
     public WebSocketState getWebSocketState() {
         return state;
     }
 
+    public String getLabel() {
+        return label;
+    }
+
+    public WalletRegistry getWalletRegistry() {
+        return walletRegistry;
+    }
+
+    void setWebSocketState(WebSocketState state) {
+        this.state = state;
+    }
+
+    public RecordingPolicy getRecordingPolicy() {
+        return recordingPolicy;
+    }
+
+    /**
+     * Set the default policy for event types that start recording without an explicit policy
+     */
+    public void setRecordingPolicy(RecordingPolicy recordingPolicy) {
+        AssertArg.notNull(recordingPolicy, "No recordingPolicy");
+        this.recordingPolicy = recordingPolicy;
+    }
+
 	@Override
     public void onOpen(WebSocket webSocket, Response response) {
         log.info("{}: WebSocket Open: {}", label, response);
+        if (response != null && response.sentRequestAtMillis() > 0) {
+            roundTripMillis = response.receivedResponseAtMillis() - response.sentRequestAtMillis();
+        }
+        openedAt = System.currentTimeMillis();
         state = WebSocketState.OPEN;
     }
 
@@ -106,13 +187,18 @@ public class WebSocketListener extends okhttp3.WebSocketListener {
     @Override
     public void onClosed(WebSocket webSocket, int code, String reason) {
         log.info("{}: WebSocket Closed: {} {}", label, code, reason);
-    	accessLock.lock();
-    	try {
-    		recordedEvents.clear();
+        List<PendingAwait<?>> pending = new ArrayList<>();
+    	synchronized (recordingLock) {
+    		Map<EventType, RecordingBuffer> closed = recordedEvents;
+    		recordedEvents = new EnumMap<>(EventType.class);
+    		pendingAwaits.values().forEach(pending::addAll);
+    		pendingAwaits.clear();
             state = WebSocketState.CLOSED;
-    	} finally {
-        	accessLock.unlock();
+            closed.values().forEach(RecordingBuffer::close);
     	}
+    	pending.forEach(pa -> pa.future.completeExceptionally(new IllegalStateException("WebSocket closed")));
+    	publishers.forEach(EventPublisher::complete);
+    	publishers.clear();
     }
 
     @Override
@@ -120,253 +206,574 @@ public class WebSocketListener extends okhttp3.WebSocketListener {
         String message = response != null ? response.message() : th.getMessage();
         if (!"Socket closed".equals(message))
             log.error(String.format("[%s] Failure: %s", label, message), th);
+        state = WebSocketState.FAILED;
     }
     @Override
     public void onMessage(WebSocket webSocket, String message) {
         log.trace("{} Event: {}", label, message);
+        lastFrameAt = System.currentTimeMillis();
         try {
-            JsonObject json = gson.fromJson(message, JsonObject.class);
-            String walletId = json.has("wallet_id") ? json.get("wallet_id").getAsString() : null;
-            String payload = json.has("payload") ? json.get("payload").toString() : BaseClient.EMPTY_JSON;
-            String topic = json.get("topic").getAsString();
-
-            // drop ws ping messages, not to be confused with aca-py ping message
-            // https://datatracker.ietf.org/doc/html/rfc6455#section-5.5.2
-            if (notWsPing(topic, payload) && isForWalletId(walletId)) {
-                handleEvent(walletId, topic, payload);
-                log.debug("{}", pretty.toJson(json));
+            if (subscribedTopics != null && !isSubscribedTopic(JsonScanner.findStringField(message, "topic"))) {
+                skippedFrames.increment();
+                return;
+            }
+            WebSocketFrame frame = frameDecoder.decode(message, this::getPayloadType);
+            EventJournal journal = this.journal;
+            if (journal != null && !frame.isWsPing()) {
+                try {
+                    journal.append(lastFrameAt, frame.getWalletId(), message);
+                } catch (RuntimeException ex) {
+                    log.error("Cannot append to journal", ex);
+                }
             }
-        } catch (JsonSyntaxException ex) {
-            log.error("JsonSyntaxException", ex);
+            if (!frame.isWsPing() && isForWalletId(frame.getWalletId())) {
+                dispatchEvent(frame);
+                if (log.isDebugEnabled()) {
+                    log.debug("{}", pretty.toJson(JsonParser.parseString(message)));
+                }
+            }
+        } catch (JsonParseException ex) {
+            log.error("JsonParseException", ex);
         }
     }
 
-    private boolean notWsPing(String topic, String payload) {
-        return !(EventType.PING.topicEquals(topic) && BaseClient.EMPTY_JSON.equals(payload));
+    /**
+     * The time at which the last frame was received, or zero
+     */
+    public long getLastFrameAt() {
+        return lastFrameAt;
+    }
+
+    /**
+     * The millis since the last frame was received, or since the WebSocket was opened 
+     * when no frame was received since. Returns -1 when the WebSocket was never opened. 
+     */
+    public long getLastFrameAge() {
+        long since = Math.max(lastFrameAt, openedAt);
+        return since > 0 ? System.currentTimeMillis() - since : -1;
+    }
+
+    /**
+     * The round trip time of the latest WebSocket handshake in millis, or -1
+     */
+    public long getRoundTripMillis() {
+        return roundTripMillis;
+    }
+
+    /**
+     * Inject a synthetic event, e.g. for a state transition that was missed while 
+     * the WebSocket was down. The event is handled and recorded like a received one.
+     */
+    public void injectEvent(String topic, String walletId, Object payload) {
+        AssertArg.notNull(topic, "No topic");
+        AssertArg.notNull(payload, "No payload");
+        String json = gson.toJson(payload);
+        dispatchEvent(WebSocketFrame.lazy(topic, walletId, json, json.length()));
+    }
+
+    /**
+     * Dispatch an event that was decoded from a WebSocket frame.
+     * 
+     * This is the entry point for events that are routed to this listener
+     * from a shared {@link WebSocketHub}.
+     */
+    protected void dispatchEvent(WebSocketFrame frame) {
+        handleEvent(frame);
+    }
+
+    /**
+     * Restrict the handled topics to the given event types. Frames for other topics are 
+     * skipped after a peek at their topic, before any payload decoding.
+     * No event types means that all topics are handled.
+     */
+    public void setSubscribedTopics(EventType... evtypes) {
+        Set<String> topics = new HashSet<>();
+        for (EventType evt : evtypes) {
+            topics.add(evt.getTopic());
+        }
+        setSubscribedTopics(topics);
+    }
+    
+    /**
+     * Restrict the handled topics to the given ones. 
+     * A null or empty set means that all topics are handled.
+     */
+    public void setSubscribedTopics(Set<String> topics) {
+        if (topics == null || topics.isEmpty()) {
+            subscribedTopics = null;
+        } else {
+            Set<String> lowerCase = new HashSet<>();
+            topics.forEach(t -> lowerCase.add(t.toLowerCase(Locale.ROOT)));
+            subscribedTopics = Collections.unmodifiableSet(lowerCase);
+        }
+    }
+    
+    /**
+     * The subscribed topics, or null when all topics are handled
+     */
+    public Set<String> getSubscribedTopics() {
+        return subscribedTopics;
+    }
+    
+    /**
+     * The number of frames that were skipped, because their topic is not subscribed
+     */
+    public long getSkippedFrames() {
+        return skippedFrames.sum();
+    }
+    
+    private boolean isSubscribedTopic(String topic) {
+        Set<String> topics = subscribedTopics;
+        return topics == null || (topic != null && topics.contains(topic.toLowerCase(Locale.ROOT)));
     }
 
     private boolean isForWalletId(String walletId) {
         return walletIdFilter == null || walletIdFilter.contains(walletId);
     }
     
-    private void handleEvent(String walletId, String topic, String payload) {
+    private void handleEvent(WebSocketFrame frame) {
         try {
-            Object value;
-            SafeConsumer<WebSocketEvent> consumer;
-            if (EventType.CONNECTIONS.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, ConnectionRecord.class).orElseThrow();
-                consumer = ev -> handleConnection(ev);
-            } else if (EventType.PRESENT_PROOF.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, PresentationExchangeRecord.class).orElseThrow();
-                consumer = ev -> handlePresentProofV1(ev);
-            } else if (EventType.PRESENT_PROOF_V2.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, V20PresExRecord.class).orElseThrow();
-                consumer = ev -> handlePresentProofV2(ev);
-            } else if (EventType.ISSUE_CREDENTIAL.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, V1CredentialExchange.class).orElseThrow();
-                consumer = ev -> handleIssueCredentialV1(ev);
-            } else if (EventType.ISSUE_CREDENTIAL_V2.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, V20CredExRecord.class).orElseThrow();
-                consumer = ev -> handleIssueCredentialV2(ev);
-            } else if (EventType.ISSUE_CREDENTIAL_V2_INDY.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, V2IssueIndyCredentialEvent.class).orElseThrow();
-                consumer = ev -> handleIssueCredentialV2Indy(ev);
-            } else if (EventType.ISSUE_CREDENTIAL_V2_LD_PROOF.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, V2IssueLDCredentialEvent.class).orElseThrow();
-                consumer = ev -> handleIssueCredentialV2LD(ev);
-            } else if (EventType.BASIC_MESSAGES.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, BasicMessage.class).orElseThrow();
-                consumer = ev -> handleBasicMessage(ev);
-            } else if (EventType.PING.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, PingEvent.class).orElseThrow();
-                consumer = ev -> handleTrustPing(ev);
-            } else if (EventType.ISSUER_CRED_REV.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, RevocationEvent.class).orElseThrow();
-                consumer = ev -> handleIssuerRevocation(ev);
-            } else if (EventType.ENDORSE_TRANSACTION.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, EndorseTransactionRecord.class).orElseThrow();
-                consumer = ev -> handleEndorseTransaction(ev);
-            } else if (EventType.PROBLEM_REPORT.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, ProblemReport.class).orElseThrow();
-                consumer = ev -> handleProblemReport(ev);
-            } else if (EventType.DISCOVER_FEATURE.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, DiscoverFeatureEvent.class).orElseThrow();
-                consumer = ev -> handleDiscoverFeature(ev);
-            } else if (EventType.REVOCATION_NOTIFICATION.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, RevocationNotificationEvent.class).orElseThrow();
-                consumer = ev -> handleRevocationNotificationV1(ev);
-            } else if (EventType.REVOCATION_NOTIFICATION_V2.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, RevocationNotificationEventV2.class).orElseThrow();
-                consumer = ev -> handleRevocationNotificationV2(ev);
-            } else if (EventType.SETTINGS.topicEquals(topic)) {
-                value = parser.parseValueSave(payload, Settings.class).orElseThrow();
-                consumer = ev -> handleSettings(ev);
-            } else {
+            String topic = frame.getTopic();
+            if (!isSubscribedTopic(topic)) {
+                skippedFrames.increment();
+                return;
+            }
+            TopicHandler<?> th = getTopicHandler(topic);
+            if (th == null) {
                 log.warn("Unsupported event topic: {}", topic);
                 return;
             }
-            
-            WebSocketEvent ev = recordEvent(new WebSocketEvent(walletId, topic, value));
-			consumer.accept(ev);
-            
+            EventType evtype = th.getEventType();
+            WebSocketEvent ev = new WebSocketEvent(frame, th.getPayloadType());
+            EventDeduplicator dedup = deduplicator;
+            if (dedup != null && evtype != null && !dedup.accept(evtype, ev)) {
+                log.debug("{}: Drop {} event", label, topic);
+                return;
+            }
+            ExchangeStateStore store = stateStore;
+            if (store != null && evtype != null) {
+                store.update(evtype, ev);
+            }
+            // Events are recorded on the reader thread, so that awaits see them in arrival order
+            recordEvent(evtype, ev);
+            for (EventPublisher pub : publishers) {
+                pub.offer(ev);
+            }
+            KeyedExecutor executor = handlerExecutor;
+            if (executor != null) {
+                try {
+                    executor.execute(handlerKey.apply(ev), () -> invokeHandler(th, ev));
+                } catch (RejectedExecutionException ex) {
+                    // Never handle inline, which would overtake the events queued for the same key
+                    log.error("{}: Drop {} event, handler executor rejected it: {}", label, topic, ex.getMessage());
+                }
+                return;
+            }
+            invokeHandler(th, ev);
+        } catch (RuntimeException ex) {
+            // Never fail the reader thread, which would close the socket
+            log.error("{}: Cannot handle {} event", label, frame.getTopic(), ex);
+        }
+    }
+    
+    private void invokeHandler(TopicHandler<?> th, WebSocketEvent ev) {
+        try {
+            th.getHandler().accept(ev);
         } catch (Throwable e) {
             log.error("Error in webhook event handler:", e);
         }
     }
     
+    /**
+     * Append the received frames to the given journal, which may be null.
+     * Keep-alive pings and frames for unsubscribed topics are not journaled.
+     */
+    public void setEventJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+    
+    public EventJournal getEventJournal() {
+        return journal;
+    }
+    
+    /**
+     * Drop duplicate and, optionally, stale events before they are recorded and dispatched.
+     * A null deduplicator passes all events.
+     */
+    public void setEventDeduplicator(EventDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+    
+    public EventDeduplicator getEventDeduplicator() {
+        return deduplicator;
+    }
+    
+    /**
+     * Keep the latest state of connections and exchanges in the given store, which may be null.
+     * The store is updated independently of whether events are recorded.
+     */
+    public void setExchangeStateStore(ExchangeStateStore stateStore) {
+        this.stateStore = stateStore;
+    }
+    
+    public ExchangeStateStore getExchangeStateStore() {
+        return stateStore;
+    }
+    
+    /**
+     * Publish the events handled by this listener to the subscribers of the given publisher.
+     * The publisher completes when the WebSocket is closed.
+     */
+    public EventPublisher addPublisher(EventPublisher publisher) {
+        AssertArg.notNull(publisher, "No publisher");
+        publishers.add(publisher);
+        return publisher;
+    }
+    
+    public void removePublisher(EventPublisher publisher) {
+        if (publishers.remove(publisher)) 
+            publisher.complete();
+    }
+    
+    /**
+     * Run event handlers on the given executor, instead of the WebSocket reader thread.
+     * Handlers for events of the same wallet run in order. 
+     * A null executor restores handling on the reader thread.
+     */
+    public void setHandlerExecutor(KeyedExecutor executor) {
+        setHandlerExecutor(executor, WebSocketEvent::getWalletId);
+    }
+    
+    /**
+     * Run event handlers on the given executor, instead of the WebSocket reader thread.
+     * Handlers for events with the same key (e.g. the exchange id) run in order.
+     * When the executor rejects an event, because its lane is full, the event is not handled.
+     * Such events are counted by {@link KeyedExecutor#getRejectedTasks()}.
+     */
+    public void setHandlerExecutor(KeyedExecutor executor, Function<WebSocketEvent, Object> keyFunction) {
+        AssertArg.isTrue(executor == null || keyFunction != null, "No keyFunction");
+        this.handlerKey = keyFunction;
+        this.handlerExecutor = executor;
+    }
+    
+    public KeyedExecutor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+    
+    private void registerDefaultTopics() {
+        registerTopic(EventType.BASIC_MESSAGES, BasicMessage.class, this::handleBasicMessage);
+        registerTopic(EventType.CONNECTIONS, ConnectionRecord.class, this::handleConnection);
+        registerTopic(EventType.DISCOVER_FEATURE, DiscoverFeatureEvent.class, this::handleDiscoverFeature);
+        registerTopic(EventType.ENDORSE_TRANSACTION, EndorseTransactionRecord.class, this::handleEndorseTransaction);
+        registerTopic(EventType.ISSUE_CREDENTIAL, V1CredentialExchange.class, this::handleIssueCredentialV1);
+        registerTopic(EventType.ISSUE_CREDENTIAL_V2, V20CredExRecord.class, this::handleIssueCredentialV2);
+        registerTopic(EventType.ISSUE_CREDENTIAL_V2_INDY, V2IssueIndyCredentialEvent.class, this::handleIssueCredentialV2Indy);
+        registerTopic(EventType.ISSUE_CREDENTIAL_V2_LD_PROOF, V2IssueLDCredentialEvent.class, this::handleIssueCredentialV2LD);
+        registerTopic(EventType.ISSUER_CRED_REV, RevocationEvent.class, this::handleIssuerRevocation);
+        registerTopic(EventType.PING, PingEvent.class, this::handleTrustPing);
+        registerTopic(EventType.PRESENT_PROOF, PresentationExchangeRecord.class, this::handlePresentProofV1);
+        registerTopic(EventType.PRESENT_PROOF_V2, V20PresExRecord.class, this::handlePresentProofV2);
+        registerTopic(EventType.PROBLEM_REPORT, ProblemReport.class, this::handleProblemReport);
+        registerTopic(EventType.REVOCATION_NOTIFICATION, RevocationNotificationEvent.class, this::handleRevocationNotificationV1);
+        registerTopic(EventType.REVOCATION_NOTIFICATION_V2, RevocationNotificationEventV2.class, this::handleRevocationNotificationV2);
+        registerTopic(EventType.SETTINGS, Settings.class, this::handleSettings);
+    }
+    
+    /**
+     * Register the payload type and handler for a well known event type.
+     * This replaces a previously registered handler for the same topic. 
+     */
+    public <T> void registerTopic(EventType evtype, Class<T> payloadType, SafeConsumer<WebSocketEvent> handler) {
+        AssertArg.notNull(evtype, "No evtype");
+        putTopicHandler(new TopicHandler<>(evtype.getTopic(), evtype, payloadType, handler));
+    }
+    
+    /**
+     * Register the payload type and handler for an arbitrary topic.
+     * Events for topics that do not correspond to a well known event type are not recorded.
+     */
+    public <T> void registerTopic(String topic, Class<T> payloadType, SafeConsumer<WebSocketEvent> handler) {
+        AssertArg.notNull(topic, "No topic");
+        EventType evtype = EventType.fromTopic(topic).orElse(null);
+        putTopicHandler(new TopicHandler<>(topic, evtype, payloadType, handler));
+    }
+    
+    /**
+     * Set the decoder for incoming WebSocket frames
+     */
+    public void setFrameDecoder(WebSocketFrameDecoder frameDecoder) {
+        AssertArg.notNull(frameDecoder, "No frameDecoder");
+        this.frameDecoder = frameDecoder;
+    }
+    
+    private Class<?> getPayloadType(String topic) {
+        TopicHandler<?> th = getTopicHandler(topic);
+        return th != null ? th.getPayloadType() : null;
+    }
+    
+    public TopicHandler<?> getTopicHandler(String topic) {
+        TopicHandler<?> th = topicHandlers.get(topic);
+        if (th == null && topic != null) {
+            th = topicHandlers.get(topic.toLowerCase(Locale.ROOT));
+        }
+        return th;
+    }
+    
+    private void putTopicHandler(TopicHandler<?> th) {
+        topicHandlers.put(th.getTopic().toLowerCase(Locale.ROOT), th);
+    }
+    
 	protected BasicMessage handleBasicMessage(WebSocketEvent ev) {
 		BasicMessage item = ev.getPayload(BasicMessage.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
     protected ConnectionRecord handleConnection(WebSocketEvent ev) throws Exception {
         ConnectionRecord item = ev.getPayload(ConnectionRecord.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item.getTheirRole(), item.getState(), item);
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item.getTheirRole(), item.getState(), item);
         return item;
     }
 
     protected DiscoverFeatureEvent handleDiscoverFeature(WebSocketEvent ev) {
 		DiscoverFeatureEvent item = ev.getPayload(DiscoverFeatureEvent.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
     protected EndorseTransactionRecord handleEndorseTransaction(WebSocketEvent ev) {
 		EndorseTransactionRecord item = ev.getPayload(EndorseTransactionRecord.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
     protected V1CredentialExchange handleIssueCredentialV1(WebSocketEvent ev) throws Exception {
         V1CredentialExchange item = ev.getPayload(V1CredentialExchange.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item.getRole(), item.getState(), item);
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item.getRole(), item.getState(), item);
         return item;
     }
     
     protected V20CredExRecord handleIssueCredentialV2(WebSocketEvent ev) {
     	V20CredExRecord item = ev.getPayload(V20CredExRecord.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
     protected V2IssueIndyCredentialEvent handleIssueCredentialV2Indy(WebSocketEvent ev) {
 		V2IssueIndyCredentialEvent item = ev.getPayload(V2IssueIndyCredentialEvent.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
     protected V2IssueLDCredentialEvent handleIssueCredentialV2LD(WebSocketEvent ev) {
 		V2IssueLDCredentialEvent item = ev.getPayload(V2IssueLDCredentialEvent.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
     protected RevocationEvent handleIssuerRevocation(WebSocketEvent ev) throws Exception {
         RevocationEvent item = ev.getPayload(RevocationEvent.class);
-        log.info("{}: [@{}] {} {}", label, ev.getWalletName(), item.getState(), item);
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {}", label, ev.getWalletName(), item.getState(), item);
         return item;
     }
 
     protected PresentationExchangeRecord handlePresentProofV1(WebSocketEvent ev) throws Exception {
         PresentationExchangeRecord item = ev.getPayload(PresentationExchangeRecord.class);
-        log.info("{}: [@{}] {} {} {} {} {}", label, ev.getWalletName(), item.getRole(), item.getState(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {} {} {}", label, ev.getWalletName(), item.getRole(), item.getState(), item);
         return item;
     }
 
     protected V20PresExRecord handlePresentProofV2(WebSocketEvent ev) {
 		V20PresExRecord item = ev.getPayload(V20PresExRecord.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
     protected ProblemReport handleProblemReport(WebSocketEvent ev) {
 		ProblemReport item = ev.getPayload(ProblemReport.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
     protected RevocationNotificationEvent handleRevocationNotificationV1(WebSocketEvent ev) {
 		RevocationNotificationEvent item = ev.getPayload(RevocationNotificationEvent.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
     protected RevocationNotificationEventV2 handleRevocationNotificationV2(WebSocketEvent ev) {
     	RevocationNotificationEventV2 item = ev.getPayload(RevocationNotificationEventV2.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
 	protected Settings handleSettings(WebSocketEvent ev) throws Exception {
         Settings item = ev.getPayload(Settings.class);
-		log.info("{}: {}", ev.getWalletName(), item);
+		if (log.isInfoEnabled())
+		    log.info("{}: {}", ev.getWalletName(), item);
         return item;
     }
 
     protected PingEvent handleTrustPing(WebSocketEvent ev) {
 		PingEvent item = ev.getPayload(PingEvent.class);
-        log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item); 
+        if (log.isInfoEnabled())
+            log.info("{}: [@{}] {} {} {}", label, ev.getWalletName(), item);
         return item;
 	}
 
     public boolean isRecording(EventType evtype) {
-    	accessLock.lock();
-    	try {
-        	return recordedEvents.containsKey(evtype);
-    	} finally {
-        	accessLock.unlock();
-    	}
+    	return recordedEvents.containsKey(evtype);
     }
     
 	public void restartRecording(EventType... evtypes) {
 		AssertState.notNull(evtypes, "Not evtypes");
-    	accessLock.lock();
-    	try {
+    	synchronized (recordingLock) {
+    		Map<EventType, RecordingBuffer> buffers = new EnumMap<>(recordedEvents);
+    		List<RecordingBuffer> replaced = new ArrayList<>();
     		for (EventType evt : evtypes) {
-    			stopRecording(evt);
-    			startRecording(evt);
+    			// Pending async awaits survive the restart
+    			RecordingBuffer buffer = buffers.get(evt);
+    			RecordingPolicy policy = buffer != null ? buffer.getPolicy() : recordingPolicy;
+    			RecordingFilter<?> filter = buffer != null ? buffer.getFilter() : null;
+    			buffers.put(evt, new RecordingBuffer(policy, filter));
+    			if (buffer != null)
+    				replaced.add(buffer);
     		}
-    	} finally {
-        	accessLock.unlock();
+    		recordedEvents = buffers;
+    		// Wake the readers, which then continue on the new buffer
+    		replaced.forEach(RecordingBuffer::close);
     	}
 	}
 	
 	public void startRecording(EventType... evtypes) {
+		startRecording(null, evtypes);
+	}
+	
+	/**
+	 * Start recording with the given policy. If an event type is already being recorded,
+	 * the given policy replaces the current one.
+	 */
+	public void startRecording(RecordingPolicy policy, EventType... evtypes) {
 		AssertState.notNull(evtypes, "Not evtypes");
-    	accessLock.lock();
-    	try {
+    	synchronized (recordingLock) {
+    		Map<EventType, RecordingBuffer> buffers = new EnumMap<>(recordedEvents);
     		for (EventType evt : evtypes) {
-        		if (!isRecording(evt)) {
-        			recordedEvents.put(evt, new ArrayList<WebSocketEvent>());
+    			RecordingBuffer buffer = buffers.get(evt);
+        		if (buffer == null) {
+        			buffers.put(evt, new RecordingBuffer(policy != null ? policy : recordingPolicy));
+        		} else if (policy != null) {
+        			buffer.setPolicy(policy);
         		}
     		}
-    	} finally {
-        	accessLock.unlock();
+    		recordedEvents = buffers;
     	}
 	}
 	
-	public void stopRecording(EventType... evtypes) {
-    	accessLock.lock();
-    	try {
-    		for (EventType evt : evtypes) {
-    			recordedEvents.remove(evt);
+	/**
+	 * Start recording the events of the given type whose payload matches the given filter. 
+	 * Other events are still handled, but never recorded.
+	 */
+	public <T> void startRecording(EventType evtype, Class<T> payloadType, Predicate<T> filter) {
+		startRecording(null, evtype, payloadType, filter, null);
+	}
+	
+	/**
+	 * Start recording the events of the given type whose payload matches the given filter, which may be null.
+	 * 
+	 * With a projection, the recorded events only keep the projected payload, e.g. a copy with just 
+	 * the fields that are needed later. The projection must not modify the given payload, which is 
+	 * also passed to the handlers. Recorded events stay indexed by the ids of the full payload.
+	 * 
+	 * If the event type is already being recorded, the filter applies to the events recorded from now on.
+	 */
+	public <T> void startRecording(RecordingPolicy policy, EventType evtype, Class<T> payloadType, Predicate<T> filter, UnaryOperator<T> projection) {
+		AssertArg.notNull(evtype, "No evtype");
+		AssertArg.notNull(payloadType, "No payloadType");
+		TopicHandler<?> th = getTopicHandler(evtype.getTopic());
+		AssertArg.isTrue(th != null && th.getPayloadType() == payloadType, "Invalid payloadType for " + evtype + ": " + payloadType);
+		RecordingFilter<T> rf = filter != null || projection != null ? new RecordingFilter<>(payloadType, filter, projection) : null;
+    	synchronized (recordingLock) {
+    		Map<EventType, RecordingBuffer> buffers = new EnumMap<>(recordedEvents);
+			RecordingBuffer buffer = buffers.get(evtype);
+    		if (buffer == null) {
+    			buffers.put(evtype, new RecordingBuffer(policy != null ? policy : recordingPolicy, rf));
+    		} else {
+    			if (policy != null)
+    				buffer.setPolicy(policy);
+    			buffer.setFilter(rf);
     		}
-    	} finally {
-        	accessLock.unlock();
+    		recordedEvents = buffers;
     	}
 	}
 	
-	private WebSocketEvent recordEvent(WebSocketEvent ev) {
-		EventType evtype = EventType.fromTopic(ev.topic).get();
-    	accessLock.lock();
-    	try {
-    		if (isRecording(evtype)) {
-        		recordedEvents.get(evtype).add(ev);
+	public void stopRecording(EventType... evtypes) {
+        List<PendingAwait<?>> pending = new ArrayList<>();
+    	synchronized (recordingLock) {
+    		Map<EventType, RecordingBuffer> buffers = new EnumMap<>(recordedEvents);
+    		List<RecordingBuffer> removed = new ArrayList<>();
+    		for (EventType evt : evtypes) {
+    			RecordingBuffer buffer = buffers.remove(evt);
+    			if (buffer != null)
+    				removed.add(buffer);
+    			Queue<PendingAwait<?>> queue = pendingAwaits.remove(evt);
+    			if (queue != null) 
+    				pending.addAll(queue);
     		}
-    	} finally {
-        	accessLock.unlock();
+    		recordedEvents = buffers;
+    		removed.forEach(RecordingBuffer::close);
     	}
+    	pending.forEach(pa -> pa.future.completeExceptionally(new IllegalStateException("Recording stopped: " + pa.evtype)));
+	}
+	
+	/**
+	 * The number of events that were evicted from the recording of the given event type
+	 */
+	public long getDroppedEvents(EventType evtype) {
+		RecordingBuffer buffer = recordedEvents.get(evtype);
+		return buffer != null ? buffer.getDroppedEvents() : 0;
+	}
+	
+	/**
+	 * The number of events currently recorded for the given event type
+	 */
+	public int getRecordedEvents(EventType evtype) {
+		RecordingBuffer buffer = recordedEvents.get(evtype);
+		return buffer != null ? buffer.size() : 0;
+	}
+	
+	/**
+	 * Record the event and complete the matching async awaits. 
+	 * This never blocks on readers, which scan the recorded events concurrently.
+	 */
+	private WebSocketEvent recordEvent(EventType evtype, WebSocketEvent ev) {
+		if (evtype == null) 
+			return ev;
+		RecordingBuffer buffer = recordedEvents.get(evtype);
+		if (buffer != null) {
+			RecordingFilter<?> filter = buffer.getFilter();
+			WebSocketEvent recorded = filter != null ? filter.apply(ev) : ev;
+			if (recorded == null)
+				return ev;
+			buffer.add(recorded);
+			Queue<PendingAwait<?>> pending = pendingAwaits.get(evtype);
+			if (pending != null && !pending.isEmpty()) {
+				pending.removeIf(pa -> pa.future.isDone() || pa.matches(recorded));
+			}
+		}
     	return ev;
 	}
 	
@@ -438,37 +845,492 @@ public class WebSocketListener extends okhttp3.WebSocketListener {
 		return getPayloadStream(EventType.PING, PingEvent.class, predicate, timeout, unit);
 	}
 
+	public Stream<ConnectionRecord> awaitConnection(String connectionId, Predicate<ConnectionRecord> predicate, long timeout, TimeUnit unit) {
+		return awaitPayload(EventType.CONNECTIONS, ConnectionRecord.class, CorrelationId.CONNECTION_ID, connectionId, predicate, timeout, unit);
+	}
+	
+	public Stream<V1CredentialExchange> awaitIssueCredentialV1(String credExId, Predicate<V1CredentialExchange> predicate, long timeout, TimeUnit unit) {
+		return awaitPayload(EventType.ISSUE_CREDENTIAL, V1CredentialExchange.class, CorrelationId.CREDENTIAL_EXCHANGE_ID, credExId, predicate, timeout, unit);
+	}
+	
+	public Stream<V20CredExRecord> awaitIssueCredentialV2(String credExId, Predicate<V20CredExRecord> predicate, long timeout, TimeUnit unit) {
+		return awaitPayload(EventType.ISSUE_CREDENTIAL_V2, V20CredExRecord.class, CorrelationId.CREDENTIAL_EXCHANGE_ID, credExId, predicate, timeout, unit);
+	}
+	
+	public Stream<PresentationExchangeRecord> awaitPresentProofV1(String presExId, Predicate<PresentationExchangeRecord> predicate, long timeout, TimeUnit unit) {
+		return awaitPayload(EventType.PRESENT_PROOF, PresentationExchangeRecord.class, CorrelationId.PRESENTATION_EXCHANGE_ID, presExId, predicate, timeout, unit);
+	}
+	
+	public Stream<V20PresExRecord> awaitPresentProofV2(String presExId, Predicate<V20PresExRecord> predicate, long timeout, TimeUnit unit) {
+		return awaitPayload(EventType.PRESENT_PROOF_V2, V20PresExRecord.class, CorrelationId.PRESENTATION_EXCHANGE_ID, presExId, predicate, timeout, unit);
+	}
+
+	public CompletableFuture<BasicMessage> awaitBasicMessageAsync(Predicate<BasicMessage> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.BASIC_MESSAGES, BasicMessage.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<ConnectionRecord> awaitConnectionAsync(Predicate<ConnectionRecord> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.CONNECTIONS, ConnectionRecord.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<DiscoverFeatureEvent> awaitDiscoveredFeatureAsync(Predicate<DiscoverFeatureEvent> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.DISCOVER_FEATURE, DiscoverFeatureEvent.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<EndorseTransactionRecord> awaitEndorseTransactionAsync(Predicate<EndorseTransactionRecord> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.ENDORSE_TRANSACTION, EndorseTransactionRecord.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V1CredentialExchange> awaitIssueCredentialV1Async(Predicate<V1CredentialExchange> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.ISSUE_CREDENTIAL, V1CredentialExchange.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V20CredExRecord> awaitIssueCredentialV2Async(Predicate<V20CredExRecord> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.ISSUE_CREDENTIAL_V2, V20CredExRecord.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V2IssueIndyCredentialEvent> awaitIssueCredentialV2IndyAsync(Predicate<V2IssueIndyCredentialEvent> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.ISSUE_CREDENTIAL_V2_INDY, V2IssueIndyCredentialEvent.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V2IssueLDCredentialEvent> awaitIssueCredentialV2LDAsync(Predicate<V2IssueLDCredentialEvent> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.ISSUE_CREDENTIAL_V2_LD_PROOF, V2IssueLDCredentialEvent.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<RevocationEvent> awaitIssuerRevocationAsync(Predicate<RevocationEvent> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.ISSUER_CRED_REV, RevocationEvent.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<PresentationExchangeRecord> awaitPresentProofV1Async(Predicate<PresentationExchangeRecord> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.PRESENT_PROOF, PresentationExchangeRecord.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V20PresExRecord> awaitPresentProofV2Async(Predicate<V20PresExRecord> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.PRESENT_PROOF_V2, V20PresExRecord.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<ProblemReport> awaitProblemReportAsync(Predicate<ProblemReport> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.PROBLEM_REPORT, ProblemReport.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<RevocationNotificationEvent> awaitRevocationNotificationV1Async(Predicate<RevocationNotificationEvent> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.REVOCATION_NOTIFICATION, RevocationNotificationEvent.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<RevocationNotificationEventV2> awaitRevocationNotificationV2Async(Predicate<RevocationNotificationEventV2> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.REVOCATION_NOTIFICATION_V2, RevocationNotificationEventV2.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<RevocationRegistryState> awaitRevocationRegistryAsync(Predicate<RevocationRegistryState> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.REVOCATION_REGISTRY, RevocationRegistryState.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<Settings> awaitSettingsAsync(Predicate<Settings> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.SETTINGS, Settings.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<PingEvent> awaitTrustPingAsync(Predicate<PingEvent> predicate, long timeout, TimeUnit unit) {
+		return getPayloadAsync(EventType.PING, PingEvent.class, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<ConnectionRecord> awaitConnectionAsync(String connectionId, Predicate<ConnectionRecord> predicate, long timeout, TimeUnit unit) {
+		return awaitPayloadAsync(EventType.CONNECTIONS, ConnectionRecord.class, CorrelationId.CONNECTION_ID, connectionId, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V1CredentialExchange> awaitIssueCredentialV1Async(String credExId, Predicate<V1CredentialExchange> predicate, long timeout, TimeUnit unit) {
+		return awaitPayloadAsync(EventType.ISSUE_CREDENTIAL, V1CredentialExchange.class, CorrelationId.CREDENTIAL_EXCHANGE_ID, credExId, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V20CredExRecord> awaitIssueCredentialV2Async(String credExId, Predicate<V20CredExRecord> predicate, long timeout, TimeUnit unit) {
+		return awaitPayloadAsync(EventType.ISSUE_CREDENTIAL_V2, V20CredExRecord.class, CorrelationId.CREDENTIAL_EXCHANGE_ID, credExId, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<PresentationExchangeRecord> awaitPresentProofV1Async(String presExId, Predicate<PresentationExchangeRecord> predicate, long timeout, TimeUnit unit) {
+		return awaitPayloadAsync(EventType.PRESENT_PROOF, PresentationExchangeRecord.class, CorrelationId.PRESENTATION_EXCHANGE_ID, presExId, predicate, timeout, unit);
+	}
+	
+	public CompletableFuture<V20PresExRecord> awaitPresentProofV2Async(String presExId, Predicate<V20PresExRecord> predicate, long timeout, TimeUnit unit) {
+		return awaitPayloadAsync(EventType.PRESENT_PROOF_V2, V20PresExRecord.class, CorrelationId.PRESENTATION_EXCHANGE_ID, presExId, predicate, timeout, unit);
+	}
+	
+	/**
+	 * Returns a future that completes with the first recorded event that matches the given predicate.
+	 * 
+	 * The future is completed from the thread that records the event. It completes exceptionally
+	 * with a TimeoutException when no matching event arrives in time, and with an IllegalStateException
+	 * when the event type is not (or no longer) being recorded. Timeouts are tracked by the shared 
+	 * {@link HashedWheelTimer}, instead of a thread or scheduled task per await. A timed out future
+	 * is completed on the common pool, not on the timer's thread.
+	 */
+	private <T> CompletableFuture<T> getPayloadAsync(EventType evtype, Class<T> payloadType, Predicate<T> predicate, long timeout, TimeUnit unit) {
+		return awaitPayloadAsync(evtype, payloadType, null, null, predicate, timeout, unit);
+	}
+	
+	/**
+	 * Returns a future that completes with the first recorded event with the given id that matches the given predicate.
+	 * 
+	 * With a correlation key, only the indexed events for that id are considered, however many 
+	 * other events are recorded. A null key considers all events of the given type.
+	 */
+	public <T> CompletableFuture<T> awaitPayloadAsync(EventType evtype, Class<T> payloadType, CorrelationId key, String id, Predicate<T> predicate, long timeout, TimeUnit unit) {
+		AssertArg.isTrue(key == null || id != null, "No id");
+		try {
+			PendingAwait<T> pa = registerAwait(EventCondition.of(evtype, payloadType, key, id, predicate), 0);
+			return HashedWheelTimer.getDefault().orTimeout(pa.future, timeout, unit);
+		} catch (IllegalStateException ex) {
+			return CompletableFuture.failedFuture(ex);
+		}
+	}
+	
+	/**
+	 * Returns a future that completes with the matching payloads of all given conditions, in the order of the conditions.
+	 * 
+	 * Conditions are evaluated independently as events arrive. They share a single deadline, 
+	 * after which the future completes exceptionally with a TimeoutException. It also completes
+	 * exceptionally as soon as one of the conditions fails. 
+	 */
+	public CompletableFuture<List<Object>> awaitAllAsync(long timeout, TimeUnit unit, EventCondition<?>... conditions) {
+		AssertArg.isTrue(conditions.length > 0, "No conditions");
+		CompletableFuture<List<Object>> result = new CompletableFuture<>();
+		List<PendingAwait<?>> pending = new ArrayList<>();
+		try {
+			for (EventCondition<?> cond : conditions) {
+				pending.add(registerAwait(cond, 0));
+			}
+		} catch (IllegalStateException ex) {
+			pending.forEach(pa -> pa.future.cancel(false));
+			return CompletableFuture.failedFuture(ex);
+		}
+		Object[] payloads = new Object[conditions.length];
+		AtomicInteger remaining = new AtomicInteger(conditions.length);
+		for (int i = 0; i < conditions.length; i++) {
+			int idx = i;
+			pending.get(i).future.whenComplete((res, th) -> {
+				if (th != null) {
+					result.completeExceptionally(th);
+				} else {
+					payloads[idx] = res;
+					if (remaining.decrementAndGet() == 0)
+						result.complete(Arrays.asList(payloads));
+				}
+			});
+		}
+		HashedWheelTimer.getDefault().orTimeout(result, timeout, unit).whenComplete((res, th) -> pending.forEach(pa -> pa.future.cancel(false)));
+		return result;
+	}
+	
+	/**
+	 * Returns a future that completes with the payload that first matches any of the given conditions.
+	 * 
+	 * It completes exceptionally with a TimeoutException when none matches before the deadline,
+	 * or when all conditions failed.
+	 */
+	public CompletableFuture<Object> awaitAnyAsync(long timeout, TimeUnit unit, EventCondition<?>... conditions) {
+		AssertArg.isTrue(conditions.length > 0, "No conditions");
+		CompletableFuture<Object> result = new CompletableFuture<>();
+		List<PendingAwait<?>> pending = new ArrayList<>();
+		try {
+			for (EventCondition<?> cond : conditions) {
+				pending.add(registerAwait(cond, 0));
+			}
+		} catch (IllegalStateException ex) {
+			pending.forEach(pa -> pa.future.cancel(false));
+			return CompletableFuture.failedFuture(ex);
+		}
+		AtomicInteger remaining = new AtomicInteger(conditions.length);
+		for (PendingAwait<?> pa : pending) {
+			pa.future.whenComplete((res, th) -> {
+				if (th == null) {
+					result.complete(res);
+				} else if (remaining.decrementAndGet() == 0) {
+					result.completeExceptionally(th);
+				}
+			});
+		}
+		HashedWheelTimer.getDefault().orTimeout(result, timeout, unit).whenComplete((res, th) -> pending.forEach(pa -> pa.future.cancel(false)));
+		return result;
+	}
+	
+	/**
+	 * Returns a future that completes with the matching payloads of the given conditions, when they 
+	 * matched in the given order. Each condition only considers events that arrived after the event
+	 * that matched the previous condition.
+	 * 
+	 * Only one condition is pending at a time. The conditions share a single deadline.
+	 */
+	public CompletableFuture<List<Object>> awaitSequenceAsync(long timeout, TimeUnit unit, EventCondition<?>... conditions) {
+		AssertArg.isTrue(conditions.length > 0, "No conditions");
+		CompletableFuture<List<Object>> result = new CompletableFuture<>();
+		AtomicReference<PendingAwait<?>> current = new AtomicReference<>();
+		awaitStep(conditions, 0, 0, new Object[conditions.length], current, result);
+		HashedWheelTimer.getDefault().orTimeout(result, timeout, unit).whenComplete((res, th) -> {
+			PendingAwait<?> pa = current.get();
+			if (pa != null) 
+				pa.future.cancel(false);
+		});
+		return result;
+	}
+	
+	private void awaitStep(EventCondition<?>[] conditions, int idx, long afterArrival, Object[] payloads, AtomicReference<PendingAwait<?>> current, CompletableFuture<List<Object>> result) {
+		PendingAwait<?> pa;
+		try {
+			pa = registerAwait(conditions[idx], afterArrival);
+		} catch (IllegalStateException ex) {
+			result.completeExceptionally(ex);
+			return;
+		}
+		current.set(pa);
+		// The deadline may have passed while registering
+		if (result.isDone()) {
+			pa.future.cancel(false);
+			return;
+		}
+		pa.future.whenComplete((res, th) -> {
+			if (th != null) {
+				result.completeExceptionally(th);
+			} else {
+				payloads[idx] = res;
+				if (idx + 1 == conditions.length) {
+					result.complete(Arrays.asList(payloads));
+				} else {
+					awaitStep(conditions, idx + 1, pa.matched.getArrival(), payloads, current, result);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Register an await for the given condition and test the events that are already recorded.
+	 * The await is removed when its future completes, in whichever way.
+	 * 
+	 * @throws IllegalStateException if the event type is not being recorded
+	 */
+	private <T> PendingAwait<T> registerAwait(EventCondition<T> cond, long afterArrival) {
+		EventType evtype = cond.getEventType();
+		RecordingBuffer buffer = recordedEvents.get(evtype);
+		if (buffer == null) 
+			throw new IllegalStateException("Not recording: " + evtype);
+		CorrelationId key = cond.getCorrelationKey();
+		String id = cond.getCorrelationId();
+		PendingAwait<T> pa = new PendingAwait<>(evtype, cond.getPayloadType(), key, id, cond.getPredicate(), afterArrival);
+		pendingAwaits.computeIfAbsent(evtype, k -> new ConcurrentLinkedQueue<>()).add(pa);
+		// Scan after registering, so that a concurrent append is seen by at least one side
+		for (WebSocketEvent ev : scan(buffer, key, id, 0, buffer.nextSeq())) {
+			if (pa.matches(ev)) 
+				break;
+		}
+		pa.future.whenComplete((res, th) -> removePendingAwait(pa));
+		return pa;
+	}
+	
+	/**
+	 * Open a cursor that reads the events of the given type, which are recorded from now on
+	 */
+	public <T> EventCursor<T> openCursor(EventType evtype, Class<T> payloadType) {
+		return openCursor(evtype, payloadType, null, null, false);
+	}
+	
+	/**
+	 * Open a cursor that reads the events of the given type that carry the given id.
+	 * The cursor starts either at the first recorded event, or at the next one to be recorded.
+	 */
+	public <T> EventCursor<T> openCursor(EventType evtype, Class<T> payloadType, CorrelationId key, String id, boolean fromStart) {
+		AssertArg.notNull(evtype, "No evtype");
+		AssertArg.notNull(payloadType, "No payloadType");
+		AssertArg.isTrue(key == null || id != null, "No id");
+		AssertState.isTrue(isRecording(evtype), "Not recording: " + evtype);
+		return new EventCursor<>(this, evtype, payloadType, key, id, fromStart);
+	}
+	
+	RecordingBuffer getRecordingBuffer(EventType evtype) {
+		return recordedEvents.get(evtype);
+	}
+	
+	/**
+	 * Get the recorded events of the given type that carry the given id
+	 */
+	public List<WebSocketEvent> lookupEvents(EventType evtype, CorrelationId key, String id) {
+		AssertArg.notNull(key, "No key");
+		RecordingBuffer buffer = recordedEvents.get(evtype);
+		return buffer != null ? buffer.lookup(key, id, 0, Long.MAX_VALUE) : Collections.emptyList();
+	}
+	
+	private static List<WebSocketEvent> scan(RecordingBuffer buffer, CorrelationId key, String id, long seq, long toSeq) {
+		return key != null ? buffer.lookup(key, id, seq, toSeq) : buffer.since(seq, toSeq);
+	}
+	
+	private void removePendingAwait(PendingAwait<?> pa) {
+		Queue<PendingAwait<?>> pending = pendingAwaits.get(pa.evtype);
+		if (pending != null) 
+			pending.remove(pa);
+	}
+	
+	/**
+	 * Waits until at least one recorded event matches the given predicate.
+	 * 
+	 * Waiters are woken by {@link #recordEvent(EventType, WebSocketEvent)} and only evaluate events 
+	 * that arrived since their last scan. A restart of the recording resets the scan position.
+	 * Events that were evicted in the meantime are skipped.
+	 * 
+	 * Waiters do not hold a lock while they scan or test events, so the reader thread is never 
+	 * blocked by them.
+	 */
 	private <T> Stream<T> getPayloadStream(EventType evtype, Class<T> payloadType, Predicate<T> predicate, long timeout, TimeUnit unit) {
-		List<T> result = Collections.emptyList();
-		if (isRecording(evtype)) {
-			long now = System.currentTimeMillis();
-			long end = timeout = now + unit.toMillis(timeout);
-			while (result.isEmpty() && now < end) {
-		    	accessLock.lock();
-		    	try {
-        			result = recordedEvents.get(evtype).stream()
-        					.map(ev -> ev.getPayload(payloadType))
-        					.filter(ev -> predicate.test(ev))
-        					.collect(Collectors.toList());
-		    	} finally {
-		        	accessLock.unlock();
-		    	}
-    			ThreadUtils.sleepWell(200);
-    			now = System.currentTimeMillis();
+		return awaitPayload(evtype, payloadType, null, null, predicate, timeout, unit);
+	}
+	
+	/**
+	 * Waits until at least one recorded event with the given id matches the given predicate.
+	 * 
+	 * With a correlation key, only the indexed events for that id are considered, however many 
+	 * other events are recorded. A null key considers all events of the given type.
+	 */
+	public <T> Stream<T> awaitPayload(EventType evtype, Class<T> payloadType, CorrelationId key, String id, Predicate<T> predicate, long timeout, TimeUnit unit) {
+		AssertArg.isTrue(key == null || id != null, "No id");
+		List<T> result = new ArrayList<>();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long seq = 0;
+		RecordingBuffer buffer = recordedEvents.get(evtype);
+		try {
+			while (buffer != null) {
+				// Obtain the signal before the scan, so that no append goes unnoticed
+				CompletableFuture<Void> appended = buffer.appendSignal();
+				long toSeq = buffer.nextSeq();
+				for (WebSocketEvent ev : scan(buffer, key, id, seq, toSeq)) {
+					// Skip events with a payload that cannot be bound
+					if (!ev.isBindable())
+						continue;
+					T payload = ev.getPayload(payloadType);
+					if (predicate.test(payload)) 
+						result.add(payload);
+				}
+				seq = toSeq;
+				long nanos = deadline - System.nanoTime();
+				if (!result.isEmpty() || nanos <= 0) 
+					break;
+				try {
+					appended.get(nanos, TimeUnit.NANOSECONDS);
+				} catch (TimeoutException ex) {
+					// Scan once more and return
+				}
+				RecordingBuffer current = recordedEvents.get(evtype);
+				if (current != buffer) {
+					buffer = current;
+					seq = 0;
+				}
 			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException(ex.getCause());
 		}
 		return result.stream();
 	}
 	
+    /**
+     * The payload type and handler for a given event topic
+     */
+    public static class TopicHandler<T> {
+    	private final String topic;
+    	private final EventType evtype;
+    	private final Class<T> payloadType;
+    	private final SafeConsumer<WebSocketEvent> handler;
+    	
+		TopicHandler(String topic, EventType evtype, Class<T> payloadType, SafeConsumer<WebSocketEvent> handler) {
+			AssertArg.notNull(payloadType, "No payloadType");
+			AssertArg.notNull(handler, "No handler");
+			this.topic = topic;
+			this.evtype = evtype;
+			this.payloadType = payloadType;
+			this.handler = handler;
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		/**
+		 * The well known event type for this topic, or null
+		 */
+		public EventType getEventType() {
+			return evtype;
+		}
+
+		public Class<T> getPayloadType() {
+			return payloadType;
+		}
+
+		public SafeConsumer<WebSocketEvent> getHandler() {
+			return handler;
+		}
+    }
+    
+    static class PendingAwait<T> {
+    	private final EventType evtype;
+    	private final Class<T> payloadType;
+    	private final CorrelationId key;
+    	private final String id;
+    	private final Predicate<T> predicate;
+    	private final long afterArrival;
+    	private final CompletableFuture<T> future = new CompletableFuture<>();
+    	private volatile WebSocketEvent matched;
+    	
+		PendingAwait(EventType evtype, Class<T> payloadType, CorrelationId key, String id, Predicate<T> predicate, long afterArrival) {
+			this.evtype = evtype;
+			this.payloadType = payloadType;
+			this.key = key;
+			this.id = id;
+			this.predicate = predicate;
+			this.afterArrival = afterArrival;
+		}
+		
+		/**
+		 * Test the event and complete the future when it matches
+		 */
+		boolean matches(WebSocketEvent ev) {
+			if (ev.getArrival() <= afterArrival)
+				return false;
+			// Compare the id before the payload gets bound
+			if (key != null && !id.equals(ev.getCorrelationId(key)))
+				return false;
+			// An event with a payload that cannot be bound never matches
+			if (!ev.isBindable())
+				return false;
+			try {
+				T payload = ev.getPayload(payloadType);
+				if (!predicate.test(payload)) 
+					return false;
+				matched = ev;
+				future.complete(payload);
+			} catch (RuntimeException ex) {
+				future.completeExceptionally(ex);
+			}
+			return true;
+		}
+    }
+    
     public class WebSocketEvent {
-        private final String topic;
-        private final String walletId;
-        private final Object payload;
+        private final WebSocketFrame frame;
+        private final Class<?> payloadType;
+        private final long receivedAt;
+        private final long arrival;
+        private volatile String[] correlationIds;
+        private volatile String serializedPayload;
+        private long seq = -1;
         
-        WebSocketEvent(String walletId, String topic, Object payload) {
-            this.walletId = walletId;
-            this.topic = topic;
-            this.payload = payload;
+        WebSocketEvent(WebSocketFrame frame, Class<?> payloadType) {
+            this.frame = frame;
+            this.payloadType = payloadType;
+            this.receivedAt = System.currentTimeMillis();
+            this.arrival = arrivals.incrementAndGet();
+        }
+
+        private WebSocketEvent(WebSocketEvent source, WebSocketFrame frame) {
+            this.frame = frame;
+            this.payloadType = source.payloadType;
+            this.receivedAt = source.receivedAt;
+            this.arrival = source.arrival;
+            this.correlationIds = source.correlationIds;
         }
 
         public WebSocketListener getWebSocketListener() {
@@ -476,20 +1338,112 @@ public class WebSocketListener extends okhttp3.WebSocketListener {
         }
         
         public String getTopic() {
-            return topic;
+            return frame.getTopic();
         }
 
         public Class<?> getEventType() {
-            return payload.getClass();
+            return payloadType;
+        }
+
+        public String getWalletId() {
+            return frame.getWalletId();
+        }
+
+        /**
+         * The estimated size of this event, which is the length of its WebSocket frame
+         */
+        public int getPayloadSize() {
+            return frame.getSize();
+        }
+
+        public long getReceivedAt() {
+            return receivedAt;
         }
 
         public String getWalletName() {
-            return walletRegistry != null ? walletRegistry.getWalletName(walletId) : label;
+            return walletRegistry != null ? walletRegistry.getWalletName(getWalletId()) : label;
+        }
+
+        /**
+         * Get the given id from the payload, or null if the payload does not carry it.
+         * The ids are extracted from the raw payload on first access, without binding it.
+         */
+        public String getCorrelationId(CorrelationId key) {
+            String[] ids = correlationIds;
+            if (ids == null) {
+                try {
+                    ids = CorrelationId.extract(getPayloadJson());
+                } catch (JsonParseException ex) {
+                    ids = new String[CorrelationId.values().length];
+                }
+                correlationIds = ids;
+            }
+            return ids[key.ordinal()];
         }
 
-        @SuppressWarnings("unchecked")
+        /**
+         * The payload's JSON text as received, or the bound payload serialized to JSON when 
+         * the decoder did not keep the text. The serialized payload is cached, so that ids 
+         * and states are extracted without serializing more than once per event.
+         */
+        String getPayloadJson() {
+            String json = frame.getPayloadJson();
+            if (json == null) {
+                json = serializedPayload;
+                if (json == null) {
+                    Object payload = frame.getPayload(payloadType);
+                    json = payload != null ? gson.toJson(payload) : null;
+                    serializedPayload = json;
+                }
+            }
+            return json;
+        }
+
+        /**
+         * The position of this event in the order of arrival at its listener, across all event types
+         */
+        long getArrival() {
+            return arrival;
+        }
+
+        /**
+         * Get a copy of this event with the given payload, which does not refer to the received frame
+         */
+        WebSocketEvent project(Object projected, int size) {
+            getCorrelationId(CorrelationId.CONNECTION_ID);
+            return new WebSocketEvent(this, new WebSocketFrame(getTopic(), getWalletId(), projected, size));
+        }
+
+        /**
+         * The sequence number assigned when recorded, or -1
+         */
+        long getSeq() {
+            return seq;
+        }
+
+        void setSeq(long seq) {
+            this.seq = seq;
+        }
+
+        /**
+         * True if the payload is bound, or can be bound to the type registered for its topic
+         */
+        public boolean isBindable() {
+            return frame.isBindable(payloadType);
+        }
+
+        /**
+         * Get the payload bound to the given type. 
+         * The payload is deserialized on first access and then cached.
+         * 
+         * @throws JsonParseException if the payload cannot be bound
+         */
         public <T> T getPayload(Class<T> type) {
-            return (T) payload;
+            return type.cast(frame.getPayload(payloadType));
+        }
+
+        public Object getPayload() {
+            return frame.getPayload(payloadType);
         }
     }
 }
@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+package io.nessus.aries.test.websocket;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.webhook.EventType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.nessus.aries.test.AbstractTest;
+import io.nessus.aries.websocket.EventJournal;
+import io.nessus.aries.websocket.EventJournalReader;
+import io.nessus.aries.websocket.EventJournalReader.JournalRecord;
+import io.nessus.aries.websocket.EventReplay;
+import io.nessus.aries.websocket.EventReplay.ReplayReport;
+import io.nessus.aries.websocket.EventReplay.TimedFrame;
+import io.nessus.aries.websocket.WebSocketListener;
+
+public class EventJournalTest extends AbstractTest {
+
+    @TempDir
+    Path journalDir;
+
+    @Test
+    void testAppendAndReplay() throws Exception {
+
+        long replayOffset;
+        try (EventJournal journal = EventJournal.builder().directory(journalDir).segmentSize(1024).build()) {
+            WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+            wslistener.setEventJournal(journal);
+            for (int i = 0; i < 10; i++) {
+                wslistener.onMessage(null, WebSocketListenerTest.connectionEvent("w1", "c" + i, "active"));
+            }
+            replayOffset = journal.getEndOffset();
+        }
+
+        // Reopen and continue after the last record
+        try (EventJournal journal = EventJournal.builder().directory(journalDir).segmentSize(1024).build()) {
+            journal.append(System.currentTimeMillis(), "w2", WebSocketListenerTest.connectionEvent("w2", "c10", "active"));
+            journal.sync();
+            Assertions.assertEquals(journal.getEndOffset(), journal.getDurableOffset());
+        }
+
+        List<JournalRecord> records = new ArrayList<>();
+        EventJournalReader reader = new EventJournalReader(journalDir);
+        long endOffset = reader.read(0, records::add);
+        Assertions.assertEquals(11, records.size());
+        Assertions.assertEquals("w1", records.get(0).getWalletId());
+        Assertions.assertEquals("w2", records.get(10).getWalletId());
+        Assertions.assertEquals(records.get(10).getOffset(), replayOffset);
+        Assertions.assertTrue(endOffset > replayOffset);
+
+        WebSocketListener wslistener = new WebSocketListener("Replay", null, null);
+        wslistener.startRecording(EventType.CONNECTIONS);
+        Assertions.assertEquals(endOffset, reader.replay(replayOffset, wslistener));
+        ConnectionRecord con = wslistener.awaitConnection(c -> true, 0, TimeUnit.SECONDS).findFirst().get();
+        Assertions.assertEquals("c10", con.getConnectionId());
+        Assertions.assertEquals(1, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+    }
+
+    @Test
+    void testEventReplay() throws Exception {
+
+        List<TimedFrame> frames = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            frames.add(new TimedFrame(1000 + 20 * i, WebSocketListenerTest.connectionEvent("w1", "c" + i, "active")));
+        }
+        Path captureFile = journalDir.resolve("capture.txt");
+        EventReplay.writeFrames(captureFile, frames);
+
+        WebSocketListener wslistener = new WebSocketListener("Replay", null, null);
+        wslistener.startRecording(EventType.CONNECTIONS);
+
+        // The frames span 180ms, which take 90ms at double speed
+        ReplayReport report = EventReplay.atSpeed(2.0).replay(captureFile, wslistener);
+        Assertions.assertEquals(10, report.getEvents());
+        Assertions.assertEquals(10, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+        Assertions.assertTrue(report.getElapsed(TimeUnit.MILLISECONDS) >= 90, report.toString());
+        Assertions.assertTrue(report.getLatency(50, TimeUnit.NANOSECONDS) <= report.getLatency(99, TimeUnit.NANOSECONDS));
+
+        report = EventReplay.maxSpeed().replay(EventReplay.readFrames(captureFile), wslistener);
+        Assertions.assertEquals(20, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+    }
+}
@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package io.nessus.aries.test.websocket;
+
+import java.util.function.Function;
+
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.api.trustping.PingEvent;
+import org.hyperledger.aries.webhook.EventType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonParseException;
+
+import io.nessus.aries.test.AbstractTest;
+import io.nessus.aries.websocket.LazyFrameDecoder;
+import io.nessus.aries.websocket.StreamingFrameDecoder;
+import io.nessus.aries.websocket.TreeFrameDecoder;
+import io.nessus.aries.websocket.WebSocketFrame;
+import io.nessus.aries.websocket.WebSocketFrameDecoder;
+
+public class WebSocketFrameDecoderTest extends AbstractTest {
+
+    static final Function<String, Class<?>> payloadTypes = topic -> {
+        if (EventType.CONNECTIONS.topicEquals(topic)) return ConnectionRecord.class;
+        if (EventType.PING.topicEquals(topic)) return PingEvent.class;
+        return null;
+    };
+
+    @Test
+    void testDecoderParity() throws Exception {
+        String[] messages = {
+            "{\"topic\":\"connections\",\"wallet_id\":\"w1\",\"payload\":{\"connection_id\":\"c1\",\"state\":\"active\"}}",
+            "{\"payload\":{\"connection_id\":\"c1\",\"state\":\"active\"},\"wallet_id\":\"w1\",\"topic\":\"connections\"}",
+            "{\"topic\":\"connections\",\"payload\":{\"connection_id\":\"c1\",\"their_label\":\"{\\\"quoted\\\"}\"}}",
+        };
+        for (String msg : messages) {
+            WebSocketFrame exp = new TreeFrameDecoder().decode(msg, payloadTypes);
+            for (WebSocketFrameDecoder decoder : new WebSocketFrameDecoder[] { new StreamingFrameDecoder(), new LazyFrameDecoder() }) {
+                WebSocketFrame was = decoder.decode(msg, payloadTypes);
+                Assertions.assertEquals(exp.getTopic(), was.getTopic());
+                Assertions.assertEquals(exp.getWalletId(), was.getWalletId());
+                Assertions.assertEquals(exp.getPayload(), was.getPayload(ConnectionRecord.class));
+            }
+            // The tree decoder keeps the payload text
+            Assertions.assertTrue(msg.contains(exp.getPayloadJson()), exp.getPayloadJson());
+        }
+    }
+
+    @Test
+    void testWsPing() throws Exception {
+        for (WebSocketFrameDecoder decoder : new WebSocketFrameDecoder[] { new TreeFrameDecoder(), new StreamingFrameDecoder(), new LazyFrameDecoder() }) {
+            Assertions.assertTrue(decoder.decode("{\"topic\":\"ping\",\"authenticated\":true}", payloadTypes).isWsPing());
+            Assertions.assertTrue(decoder.decode("{\"topic\":\"ping\",\"payload\":{}}", payloadTypes).isWsPing());
+            Assertions.assertFalse(decoder.decode("{\"topic\":\"ping\",\"payload\":{\"state\":\"received\"}}", payloadTypes).isWsPing());
+        }
+    }
+
+    @Test
+    void testLazyPayload() throws Exception {
+        String msg = "{\"topic\":\"connections\",\"wallet_id\":\"w\\u0031\",\"payload\":{\"connection_id\":\"c1\",\"state\":\"active\"}}";
+        WebSocketFrame frame = new LazyFrameDecoder().decode(msg, payloadTypes);
+        Assertions.assertEquals("w1", frame.getWalletId());
+        Assertions.assertNull(frame.getPayload());
+        Assertions.assertEquals("{\"connection_id\":\"c1\",\"state\":\"active\"}", frame.getRawPayload());
+
+        ConnectionRecord con = frame.getPayload(ConnectionRecord.class);
+        Assertions.assertEquals("c1", con.getConnectionId());
+        Assertions.assertSame(con, frame.getPayload(ConnectionRecord.class));
+        Assertions.assertNull(frame.getRawPayload());
+    }
+
+    @Test
+    void testMalformedEscape() throws Exception {
+        for (String walletId : new String[] { "w\\u00", "w\\u00zz", "w\\u+123" }) {
+            String msg = "{\"topic\":\"connections\",\"wallet_id\":\"" + walletId + "\",\"payload\":{\"connection_id\":\"c1\"}}";
+            Assertions.assertThrows(JsonParseException.class, () -> new LazyFrameDecoder().decode(msg, payloadTypes), msg);
+        }
+    }
+}
@@ -0,0 +1,850 @@
+/*-
+ * #%L
+ * Nessus Aries :: Common
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package io.nessus.aries.test.websocket;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.api.issue_credential_v1.V1CredentialExchange;
+import org.hyperledger.aries.webhook.EventType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.nessus.aries.AgentConfiguration;
+import io.nessus.aries.HttpClientFactory;
+import io.nessus.aries.SharedWebSocketClient;
+import io.nessus.aries.test.AbstractTest;
+import io.nessus.aries.util.HashedWheelTimer;
+import io.nessus.aries.util.KeyedExecutor;
+import io.nessus.aries.websocket.CorrelationId;
+import io.nessus.aries.websocket.EventCondition;
+import io.nessus.aries.websocket.EventDeduplicator;
+import io.nessus.aries.websocket.EventCursor;
+import io.nessus.aries.websocket.EventPublisher;
+import io.nessus.aries.websocket.ExchangeStateStore;
+import io.nessus.aries.websocket.EventPublisher.OverflowStrategy;
+import io.nessus.aries.websocket.ReconnectPolicy;
+import io.nessus.aries.websocket.RecordingPolicy;
+import io.nessus.aries.websocket.WebSocketClient;
+import io.nessus.aries.websocket.WebSocketHub;
+import io.nessus.aries.websocket.WebSocketListener;
+import io.nessus.aries.websocket.WebSocketListener.WebSocketEvent;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+public class WebSocketListenerTest extends AbstractTest {
+
+    static String connectionEvent(String walletId, String connectionId, String state) {
+        return String.format("{\"topic\":\"connections\",\"wallet_id\":\"%s\",\"payload\":{\"connection_id\":\"%s\",\"state\":\"%s\"}}",
+                walletId, connectionId, state);
+    }
+
+    static String connectionEvent(String walletId, String connectionId, String state, String updatedAt) {
+        return String.format("{\"topic\":\"connections\",\"wallet_id\":\"%s\",\"payload\":{\"connection_id\":\"%s\",\"state\":\"%s\",\"updated_at\":\"%s\"}}",
+                walletId, connectionId, state, updatedAt);
+    }
+
+    @Test
+    void testAwaitRecordedEvent() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(EventType.CONNECTIONS);
+
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "request"));
+
+        new Thread(() -> wslistener.onMessage(null, connectionEvent("w1", "c1", "active"))).start();
+
+        long start = System.currentTimeMillis();
+        List<ConnectionRecord> result = wslistener.awaitConnection(ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS)
+                .collect(Collectors.toList());
+        long elapsed = System.currentTimeMillis() - start;
+
+        Assertions.assertEquals(1, result.size());
+        Assertions.assertEquals("c1", result.get(0).getConnectionId());
+        Assertions.assertTrue(elapsed < 5000, "Elapsed: " + elapsed);
+    }
+
+    @Test
+    void testAwaitTimeout() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(EventType.CONNECTIONS);
+
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "request"));
+
+        long count = wslistener.awaitConnection(ConnectionRecord::stateIsActive, 200, TimeUnit.MILLISECONDS).count();
+        Assertions.assertEquals(0, count);
+    }
+
+    @Test
+    void testAwaitAsync() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(EventType.CONNECTIONS);
+
+        CompletableFuture<ConnectionRecord> future = wslistener.awaitConnectionAsync(ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS);
+        Assertions.assertFalse(future.isDone());
+
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "active"));
+        Assertions.assertTrue(future.isDone());
+        Assertions.assertEquals("c1", future.get().getConnectionId());
+
+        CompletableFuture<ConnectionRecord> timeout = wslistener.awaitConnectionAsync(con -> "c2".equals(con.getConnectionId()), 200, TimeUnit.MILLISECONDS);
+        ExecutionException ex = Assertions.assertThrows(ExecutionException.class, () -> timeout.get());
+        Assertions.assertTrue(ex.getCause() instanceof TimeoutException, "Unexpected: " + ex.getCause());
+    }
+
+    @Test
+    void testBoundedRecording() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(RecordingPolicy.builder().maxEvents(2).build(), EventType.CONNECTIONS);
+
+        for (int i = 0; i < 5; i++) {
+            wslistener.onMessage(null, connectionEvent("w1", "c" + i, "request"));
+        }
+
+        Assertions.assertEquals(2, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+        Assertions.assertEquals(3, wslistener.getDroppedEvents(EventType.CONNECTIONS));
+
+        List<String> ids = wslistener.awaitConnection(con -> true, 0, TimeUnit.SECONDS)
+                .map(ConnectionRecord::getConnectionId)
+                .collect(Collectors.toList());
+        Assertions.assertEquals(List.of("c3", "c4"), ids);
+    }
+
+    @Test
+    void testHubRouting() throws Exception {
+
+        WebSocketHub wshub = new WebSocketHub(AgentConfiguration.defaultConfiguration(), null);
+
+        WebSocketListener alice = new WebSocketListener("Alice", null, null);
+        WebSocketListener faber = new WebSocketListener("Faber", null, null);
+        alice.startRecording(EventType.CONNECTIONS);
+        faber.startRecording(EventType.CONNECTIONS);
+        wshub.subscribe("alice", alice);
+        wshub.subscribe("faber", faber);
+
+        wshub.onMessage(null, connectionEvent("alice", "c1", "active"));
+        wshub.onMessage(null, connectionEvent("faber", "c2", "active"));
+        wshub.onMessage(null, connectionEvent("other", "c3", "active"));
+
+        Assertions.assertEquals(1, alice.getRecordedEvents(EventType.CONNECTIONS));
+        Assertions.assertEquals(1, faber.getRecordedEvents(EventType.CONNECTIONS));
+        Assertions.assertEquals("c1", alice.awaitConnection(con -> true, 0, TimeUnit.SECONDS).findFirst().get().getConnectionId());
+
+        wshub.unsubscribe("alice", alice);
+        wshub.onMessage(null, connectionEvent("alice", "c4", "active"));
+        Assertions.assertEquals(1, alice.getRecordedEvents(EventType.CONNECTIONS));
+        Assertions.assertFalse(wshub.hasSubscribers("alice"));
+    }
+
+    @Test
+    void testRegisterTopic() throws Exception {
+
+        List<ConnectionRecord> handled = new ArrayList<>();
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.registerTopic("custom_connections", ConnectionRecord.class, ev -> handled.add(ev.getPayload(ConnectionRecord.class)));
+
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "active").replace("\"connections\"", "\"custom_connections\""));
+
+        Assertions.assertEquals(1, handled.size());
+        Assertions.assertEquals("c1", handled.get(0).getConnectionId());
+    }
+
+    @Test
+    void testSubscribedTopics() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.setSubscribedTopics(EventType.ISSUE_CREDENTIAL_V2);
+        wslistener.startRecording(EventType.CONNECTIONS);
+
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "active"));
+        wslistener.onMessage(null, "{\"topic\":\"settings\",\"payload\":{}}");
+
+        Assertions.assertEquals(0, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+        Assertions.assertEquals(2, wslistener.getSkippedFrames());
+
+        wslistener.setSubscribedTopics();
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "active"));
+        Assertions.assertEquals(1, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+    }
+
+    @Test
+    void testHandlerExecutor() throws Exception {
+
+        CountDownLatch slow = new CountDownLatch(1);
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.registerTopic(EventType.CONNECTIONS, ConnectionRecord.class, ev -> {
+            ConnectionRecord con = ev.getPayload(ConnectionRecord.class);
+            if ("c1".equals(con.getConnectionId())) 
+                slow.await(10, TimeUnit.SECONDS);
+            handled.add(ev.getWalletId() + ":" + con.getConnectionId());
+        });
+        wslistener.startRecording(EventType.CONNECTIONS);
+
+        try (KeyedExecutor executor = new KeyedExecutor("handler", 4, 16)) {
+            wslistener.setHandlerExecutor(executor);
+
+            // Find a wallet that does not share a lane with w1
+            String other = IntStream.range(0, 100).mapToObj(i -> "w" + i)
+                    .filter(w -> Math.floorMod(w.hashCode() ^ (w.hashCode() >>> 16), 4) != Math.floorMod("w1".hashCode() ^ ("w1".hashCode() >>> 16), 4))
+                    .findFirst().get();
+
+            wslistener.onMessage(null, connectionEvent("w1", "c1", "active"));
+            wslistener.onMessage(null, connectionEvent("w1", "c2", "active"));
+            wslistener.onMessage(null, connectionEvent(other, "c3", "active"));
+
+            // Recording is not delayed by the slow handler
+            Assertions.assertEquals(3, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (handled.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(List.of(other + ":c3"), handled);
+
+            slow.countDown();
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(List.of(other + ":c3", "w1:c1", "w1:c2"), handled);
+        }
+    }
+
+    @Test
+    void testHandlerExecutorFull() throws Exception {
+
+        // Without an offer timeout, events for a full lane are dropped
+        List<String> handled = handleWithFullLane(Duration.ZERO, null);
+        Assertions.assertEquals(List.of("c1", "c2", "c4"), handled);
+
+        // With an offer timeout, the reader waits for room
+        handled = handleWithFullLane(Duration.ofSeconds(10), Duration.ofMillis(200));
+        Assertions.assertEquals(List.of("c1", "c2", "c3", "c4"), handled);
+    }
+
+    // Handle c1..c4 for one wallet on a single lane with room for one task, while c1 blocks the lane
+    private List<String> handleWithFullLane(Duration offerTimeout, Duration releaseAfter) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch slow = new CountDownLatch(1);
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.registerTopic(EventType.CONNECTIONS, ConnectionRecord.class, ev -> {
+            ConnectionRecord con = ev.getPayload(ConnectionRecord.class);
+            if ("c1".equals(con.getConnectionId())) {
+                started.countDown();
+                slow.await(10, TimeUnit.SECONDS);
+            }
+            handled.add(con.getConnectionId());
+        });
+
+        try (KeyedExecutor executor = new KeyedExecutor("handler", 1, 1, offerTimeout)) {
+            wslistener.setHandlerExecutor(executor);
+
+            wslistener.onMessage(null, connectionEvent("w1", "c1", "active"));
+            Assertions.assertTrue(started.await(10, TimeUnit.SECONDS));
+            wslistener.onMessage(null, connectionEvent("w1", "c2", "active"));
+
+            if (releaseAfter != null) {
+                new Thread(() -> {
+                    try {
+                        Thread.sleep(releaseAfter.toMillis());
+                    } catch (InterruptedException ex) {
+                        // ignore
+                    }
+                    slow.countDown();
+                }).start();
+            }
+
+            // The lane is full, so c3 is either dropped or waits for room, but never handled inline
+            wslistener.onMessage(null, connectionEvent("w1", "c3", "active"));
+            Assertions.assertEquals(releaseAfter != null ? 0 : 1, executor.getRejectedTasks());
+
+            slow.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (executor.getQueuedTasks() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            wslistener.onMessage(null, connectionEvent("w1", "c4", "active"));
+
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+        return handled;
+    }
+
+    @Test
+    void testReconnect() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+
+            // The first connection delivers one event and is then closed by the agent
+            server.enqueue(new MockResponse().withWebSocketUpgrade(new okhttp3.WebSocketListener() {
+                public void onOpen(WebSocket ws, Response response) {
+                    ws.send(connectionEvent("w1", "c1", "request"));
+                    ws.close(1001, "Going away");
+                }
+            }));
+            server.enqueue(new MockResponse().withWebSocketUpgrade(new okhttp3.WebSocketListener() {
+                public void onOpen(WebSocket ws, Response response) {
+                    ws.send(connectionEvent("w1", "c1", "active"));
+                }
+                public void onClosing(WebSocket ws, int code, String reason) {
+                    ws.close(1000, null);
+                }
+            }));
+
+            AgentConfiguration agentConfig = AgentConfiguration.builder()
+                    .adminUrl(server.url("/").toString())
+                    .build();
+            ReconnectPolicy policy = ReconnectPolicy.builder()
+                    .initialDelay(Duration.ofMillis(10))
+                    .build();
+
+            WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+            wslistener.startRecording(EventType.CONNECTIONS);
+
+            WebSocketClient wsclient = new WebSocketClient(agentConfig, null);
+            wsclient.openWebSocket(wslistener, policy);
+            try {
+                ConnectionRecord con = wsclient.awaitConnectionAsync(ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS).get();
+                Assertions.assertEquals("c1", con.getConnectionId());
+                Assertions.assertEquals(1, wsclient.getReconnectCount());
+
+                // Events recorded before the outage survive
+                Assertions.assertEquals(2, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+            } finally {
+                wsclient.close();
+            }
+        }
+    }
+
+    @Test
+    void testCorrelationIndex() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(RecordingPolicy.builder().maxEvents(100).build(), EventType.CONNECTIONS);
+
+        for (int i = 0; i < 200; i++) {
+            wslistener.onMessage(null, connectionEvent("w1", "c" + i, "request"));
+        }
+        wslistener.onMessage(null, connectionEvent("w1", "c150", "active"));
+
+        // Evicted events are removed from the index
+        Assertions.assertTrue(wslistener.lookupEvents(EventType.CONNECTIONS, CorrelationId.CONNECTION_ID, "c50").isEmpty());
+        Assertions.assertEquals(2, wslistener.lookupEvents(EventType.CONNECTIONS, CorrelationId.CONNECTION_ID, "c150").size());
+
+        List<String> states = wslistener.awaitConnection("c150", con -> true, 0, TimeUnit.SECONDS)
+                .map(con -> con.getState().toString())
+                .collect(Collectors.toList());
+        Assertions.assertEquals(List.of("REQUEST", "ACTIVE"), states);
+
+        CompletableFuture<ConnectionRecord> future = wslistener.awaitConnectionAsync("c300", ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS);
+        wslistener.onMessage(null, connectionEvent("w1", "c299", "active"));
+        Assertions.assertFalse(future.isDone());
+        wslistener.onMessage(null, connectionEvent("w1", "c300", "active"));
+        Assertions.assertEquals("c300", future.get().getConnectionId());
+    }
+
+    @Test
+    void testConcurrentAwaits() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(RecordingPolicy.builder().maxEvents(1000).build(), EventType.CONNECTIONS);
+
+        List<CompletableFuture<Long>> awaits = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String conId = "c" + (i * 100 + 99);
+            awaits.add(CompletableFuture.supplyAsync(() -> wslistener.awaitConnection(conId, ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS).count()));
+        }
+
+        for (int i = 0; i < 800; i++) {
+            wslistener.onMessage(null, connectionEvent("w1", "c" + i, "request"));
+            wslistener.onMessage(null, connectionEvent("w1", "c" + i, "active"));
+        }
+
+        for (CompletableFuture<Long> future : awaits) {
+            Assertions.assertEquals(1L, future.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void testEventCursor() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(EventType.CONNECTIONS);
+        wslistener.onMessage(null, connectionEvent("w1", "c0", "active"));
+
+        EventCursor<ConnectionRecord> cursor = wslistener.openCursor(EventType.CONNECTIONS, ConnectionRecord.class);
+        Assertions.assertTrue(cursor.poll().isEmpty());
+
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "request"));
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "active"));
+        Assertions.assertEquals(2, cursor.poll().size());
+        Assertions.assertTrue(cursor.poll().isEmpty());
+
+        new Thread(() -> wslistener.onMessage(null, connectionEvent("w1", "c2", "active"))).start();
+        List<ConnectionRecord> batch = cursor.next(10, TimeUnit.SECONDS);
+        Assertions.assertEquals("c2", batch.get(0).getConnectionId());
+
+        // A restart continues at the start of the new recording
+        wslistener.restartRecording(EventType.CONNECTIONS);
+        wslistener.onMessage(null, connectionEvent("w1", "c3", "active"));
+        Assertions.assertEquals("c3", cursor.next(10, TimeUnit.SECONDS).get(0).getConnectionId());
+        Assertions.assertTrue(cursor.next(100, TimeUnit.MILLISECONDS).isEmpty());
+    }
+
+    @Test
+    void testEventPublisher() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        EventPublisher publisher = wslistener.addPublisher(EventPublisher.builder()
+                .eventTypes(EventType.CONNECTIONS)
+                .walletId("w1")
+                .overflow(OverflowStrategy.DROP_OLDEST, 2)
+                .build());
+
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch subscribed = new CountDownLatch(1);
+        CountDownLatch completed = new CountDownLatch(1);
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        publisher.subscribe(new Flow.Subscriber<WebSocketEvent>() {
+            public void onSubscribe(Flow.Subscription sub) {
+                subscription.set(sub);
+                subscribed.countDown();
+            }
+            public void onNext(WebSocketEvent ev) {
+                received.add(ev.getPayload(ConnectionRecord.class).getConnectionId());
+            }
+            public void onError(Throwable th) {
+            }
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+        Assertions.assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+
+        // Without demand, only the two latest events are kept
+        for (int i = 0; i < 5; i++) {
+            wslistener.onMessage(null, connectionEvent("w1", "c" + i, "active"));
+        }
+        wslistener.onMessage(null, connectionEvent("w2", "c9", "active"));
+
+        subscription.get().request(10);
+        wslistener.onClosed(null, 1000, null);
+        Assertions.assertTrue(completed.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("c3", "c4"), received);
+    }
+
+    @Test
+    void testEventDeduplication() throws Exception {
+
+        EventDeduplicator dedup = EventDeduplicator.builder().build();
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.setEventDeduplicator(dedup);
+        wslistener.startRecording(EventType.CONNECTIONS);
+
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "request", "2022-05-10 12:30:11.100000Z"));
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "request", "2022-05-10 12:30:11.100000Z"));
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "active", "2022-05-10 12:30:11.300000Z"));
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "response", "2022-05-10 12:30:11.200000Z"));
+        wslistener.onMessage(null, connectionEvent("w1", "c2", "request", "2022-05-10 12:30:11.000000Z"));
+        wslistener.onMessage(null, connectionEvent("w1", "c3", "active"));
+        wslistener.onMessage(null, connectionEvent("w1", "c3", "active"));
+
+        // Regressions pass by default, events without updated_at are still deduplicated
+        Assertions.assertEquals(5, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+        Assertions.assertEquals(2, dedup.getDuplicates());
+        Assertions.assertEquals(1, dedup.getRegressions());
+        Assertions.assertEquals(0, dedup.getDroppedRegressions());
+        Assertions.assertEquals(3, dedup.size());
+
+        dedup = EventDeduplicator.builder().maxExchanges(1).holdBackRegressions(true).build();
+        wslistener.setEventDeduplicator(dedup);
+        wslistener.stopRecording(EventType.CONNECTIONS);
+        wslistener.startRecording(EventType.CONNECTIONS);
+
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "active", "2022-05-10 12:30:11.300000Z"));
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "response", "2022-05-10 12:30:11.2Z"));
+        wslistener.onMessage(null, connectionEvent("w1", "c2", "request", "2022-05-10 12:30:11.000000Z"));
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "active", "2022-05-10 12:30:11.300000Z"));
+
+        // The regression is held back, c1 was evicted by c2 and counts as new again
+        Assertions.assertEquals(3, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+        Assertions.assertEquals(0, dedup.getDuplicates());
+        Assertions.assertEquals(1, dedup.getRegressions());
+        Assertions.assertEquals(1, dedup.getDroppedRegressions());
+        Assertions.assertEquals(1, dedup.size());
+    }
+
+    @Test
+    void testExchangeStateStore() throws Exception {
+
+        ExchangeStateStore store = new ExchangeStateStore();
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.setExchangeStateStore(store);
+
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "request", "2022-05-10 12:30:11.100000Z"));
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "active", "2022-05-10 12:30:11.300000Z"));
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "response", "2022-05-10 12:30:11.200000Z"));
+
+        // The stale response does not replace the active record
+        Assertions.assertTrue(store.getConnection("c1").stateIsActive());
+        Assertions.assertEquals(1, store.size(EventType.CONNECTIONS));
+        Assertions.assertEquals(0, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+
+        // Already matching records complete immediately
+        CompletableFuture<ConnectionRecord> active = store.awaitConnectionAsync("c1", ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS);
+        Assertions.assertTrue(active.isDone());
+
+        CompletableFuture<ConnectionRecord> pending = store.awaitConnectionAsync("c2", ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS);
+        wslistener.onMessage(null, connectionEvent("w1", "c2", "request", "2022-05-10 12:30:12.000000Z"));
+        Assertions.assertFalse(pending.isDone());
+        wslistener.onMessage(null, connectionEvent("w1", "c2", "active", "2022-05-10 12:30:13.000000Z"));
+        Assertions.assertEquals("c2", pending.get(10, TimeUnit.SECONDS).getConnectionId());
+
+        // Blocking awaits return the matching record, or null on timeout
+        Assertions.assertEquals("c2", store.awaitConnection("c2", ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS).getConnectionId());
+        Assertions.assertNull(store.awaitConnection("c3", ConnectionRecord::stateIsActive, 200, TimeUnit.MILLISECONDS));
+
+        CompletableFuture<ConnectionRecord> timeout = store.awaitConnectionAsync("c3", ConnectionRecord::stateIsActive, 200, TimeUnit.MILLISECONDS);
+        ExecutionException ex = Assertions.assertThrows(ExecutionException.class, () -> timeout.get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(ex.getCause() instanceof TimeoutException);
+
+        // A payload that cannot be bound does not replace the record
+        wslistener.onMessage(null, connectionEvent("w1", "c2", "response", "2022-05-10 12:30:14.000000Z")
+                .replace("\"}}", "\",\"their_label\":{\"x\":1}}}"));
+        Assertions.assertTrue(store.getConnection("c2").stateIsActive());
+
+        // Deleted records are removed
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "deleted", "2022-05-10 12:30:14.000000Z"));
+        Assertions.assertNull(store.getConnection("c1"));
+        Assertions.assertEquals(1, store.size(EventType.CONNECTIONS));
+    }
+
+    @Test
+    void testSharedWebSocketClient() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+
+            // More sockets than the default limit of concurrent calls per host
+            int count = 8;
+            for (int i = 0; i < count; i++) {
+                String event = connectionEvent("w1", "c" + i, "active");
+                server.enqueue(new MockResponse().withWebSocketUpgrade(new okhttp3.WebSocketListener() {
+                    public void onOpen(WebSocket ws, Response response) {
+                        ws.send(event);
+                    }
+                    public void onClosing(WebSocket ws, int code, String reason) {
+                        ws.close(1000, null);
+                    }
+                }));
+            }
+
+            AgentConfiguration agentConfig = AgentConfiguration.builder()
+                    .adminUrl(server.url("/").toString())
+                    .webSocketPingInterval(Duration.ofSeconds(10))
+                    .build();
+
+            // Leases share the dispatcher, whatever their ping interval
+            SharedWebSocketClient lease = HttpClientFactory.acquireWebSocketClient(null);
+            okhttp3.Dispatcher dispatcher = lease.getHttpClient().dispatcher();
+            try (SharedWebSocketClient other = HttpClientFactory.acquireWebSocketClient(Duration.ofSeconds(10))) {
+                Assertions.assertSame(dispatcher, other.getHttpClient().dispatcher());
+            }
+
+            List<WebSocketClient> wsclients = new ArrayList<>();
+            try {
+                for (int i = 0; i < count; i++) {
+                    WebSocketListener wslistener = new WebSocketListener("Test" + i, null, null);
+                    wslistener.startRecording(EventType.CONNECTIONS);
+                    WebSocketClient wsclient = new WebSocketClient(agentConfig, null);
+                    wsclient.openWebSocket(wslistener);
+                    wsclients.add(wsclient);
+                }
+                List<String> received = new ArrayList<>();
+                for (WebSocketClient wsclient : wsclients) {
+                    ConnectionRecord con = wsclient.awaitConnectionAsync(ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS).get();
+                    received.add(con.getConnectionId());
+                }
+                Collections.sort(received);
+                Assertions.assertEquals(IntStream.range(0, count).mapToObj(i -> "c" + i).collect(Collectors.toList()), received);
+                Assertions.assertEquals(count, dispatcher.runningCallsCount());
+            } finally {
+                wsclients.forEach(WebSocketClient::close);
+            }
+
+            // Closing the last lease shuts down the dispatcher, the next lease gets a new one
+            Assertions.assertFalse(dispatcher.executorService().isShutdown());
+            lease.close();
+            Assertions.assertTrue(dispatcher.executorService().isShutdown());
+            try (SharedWebSocketClient next = HttpClientFactory.acquireWebSocketClient(null)) {
+                Assertions.assertNotSame(dispatcher, next.getHttpClient().dispatcher());
+            }
+        }
+    }
+
+    @Test
+    void testLivenessTimeout() throws Exception {
+
+        try (MockWebServer server = new MockWebServer()) {
+
+            // The first connection delivers one event and then goes silent, without being closed
+            server.enqueue(new MockResponse().withWebSocketUpgrade(new okhttp3.WebSocketListener() {
+                public void onOpen(WebSocket ws, Response response) {
+                    ws.send(connectionEvent("w1", "c1", "request"));
+                }
+            }));
+            server.enqueue(new MockResponse().withWebSocketUpgrade(new okhttp3.WebSocketListener() {
+                public void onOpen(WebSocket ws, Response response) {
+                    ws.send(connectionEvent("w1", "c1", "active"));
+                }
+                public void onClosing(WebSocket ws, int code, String reason) {
+                    ws.close(1000, null);
+                }
+            }));
+
+            AgentConfiguration agentConfig = AgentConfiguration.builder()
+                    .adminUrl(server.url("/").toString())
+                    .webSocketLivenessTimeout(Duration.ofMillis(300))
+                    .build();
+            ReconnectPolicy policy = ReconnectPolicy.builder()
+                    .initialDelay(Duration.ofMillis(10))
+                    .build();
+
+            WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+            wslistener.startRecording(EventType.CONNECTIONS);
+
+            WebSocketClient wsclient = new WebSocketClient(agentConfig, null);
+            wsclient.openWebSocket(wslistener, policy);
+            try {
+                ConnectionRecord con = wsclient.awaitConnectionAsync(ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS).get();
+                Assertions.assertEquals("c1", con.getConnectionId());
+                Assertions.assertEquals(1, wsclient.getLivenessFailures());
+                Assertions.assertEquals(1, wsclient.getReconnectCount());
+                Assertions.assertTrue(wsclient.getRoundTripMillis() >= 0);
+                Assertions.assertTrue(wsclient.getLastFrameAge() >= 0);
+            } finally {
+                wsclient.close();
+            }
+        }
+    }
+
+    static String credentialEvent(String walletId, String credExId, String state) {
+        return String.format("{\"topic\":\"issue_credential\",\"wallet_id\":\"%s\",\"payload\":{\"credential_exchange_id\":\"%s\",\"state\":\"%s\"}}",
+                walletId, credExId, state);
+    }
+
+    @Test
+    void testCompositeAwaits() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(EventType.CONNECTIONS, EventType.ISSUE_CREDENTIAL);
+
+        // All conditions across two event types
+        CompletableFuture<List<Object>> all = wslistener.awaitAllAsync(10, TimeUnit.SECONDS,
+                EventCondition.connection("c1", ConnectionRecord::stateIsActive),
+                EventCondition.issueCredentialV1("x1", ex -> true));
+        wslistener.onMessage(null, connectionEvent("w1", "c1", "active"));
+        Assertions.assertFalse(all.isDone());
+        wslistener.onMessage(null, credentialEvent("w1", "x1", "offer_received"));
+        List<Object> payloads = all.get(10, TimeUnit.SECONDS);
+        Assertions.assertEquals("c1", ((ConnectionRecord) payloads.get(0)).getConnectionId());
+        Assertions.assertEquals("x1", ((V1CredentialExchange) payloads.get(1)).getCredentialExchangeId());
+
+        // Any condition
+        CompletableFuture<Object> any = wslistener.awaitAnyAsync(10, TimeUnit.SECONDS,
+                EventCondition.connection("c8", ConnectionRecord::stateIsActive),
+                EventCondition.connection("c9", ConnectionRecord::stateIsActive));
+        wslistener.onMessage(null, connectionEvent("w1", "c9", "active"));
+        Assertions.assertEquals("c9", ((ConnectionRecord) any.get(10, TimeUnit.SECONDS)).getConnectionId());
+
+        // A sequence only matches events that arrived after the previous match
+        wslistener.onMessage(null, connectionEvent("w1", "c2", "active"));
+        CompletableFuture<List<Object>> sequence = wslistener.awaitSequenceAsync(10, TimeUnit.SECONDS,
+                EventCondition.issueCredentialV1("x2", ex -> true),
+                EventCondition.connection("c2", ConnectionRecord::stateIsActive));
+        wslistener.onMessage(null, credentialEvent("w1", "x2", "offer_received"));
+        Assertions.assertFalse(sequence.isDone());
+        wslistener.onMessage(null, connectionEvent("w1", "c2", "active"));
+        Assertions.assertEquals(2, sequence.get(10, TimeUnit.SECONDS).size());
+
+        // All conditions share the deadline
+        CompletableFuture<List<Object>> timeout = wslistener.awaitAllAsync(200, TimeUnit.MILLISECONDS,
+                EventCondition.connection("c1", ConnectionRecord::stateIsActive),
+                EventCondition.connection("c3", ConnectionRecord::stateIsActive));
+        ExecutionException ex = Assertions.assertThrows(ExecutionException.class, () -> timeout.get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(ex.getCause() instanceof TimeoutException);
+
+        // Conditions on event types that are not recorded fail immediately
+        CompletableFuture<Object> unrecorded = wslistener.awaitAnyAsync(10, TimeUnit.SECONDS,
+                EventCondition.presentProofV2(pex -> true));
+        Assertions.assertTrue(unrecorded.isCompletedExceptionally());
+    }
+
+    @Test
+    void testAwaitTimeouts() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(EventType.CONNECTIONS);
+
+        HashedWheelTimer timer = HashedWheelTimer.getDefault();
+        int pendingBefore = timer.getPendingTimeouts();
+
+        // Dependent stages of a timed out await do not run on the timer's thread
+        AtomicReference<String> stageThread = new AtomicReference<>();
+        CompletableFuture<?> stage = wslistener.awaitConnectionAsync("x", ConnectionRecord::stateIsActive, 50, TimeUnit.MILLISECONDS)
+                .whenComplete((res, th) -> stageThread.set(Thread.currentThread().getName()));
+        Assertions.assertThrows(ExecutionException.class, () -> stage.get(10, TimeUnit.SECONDS));
+        Assertions.assertNotEquals("AwaitTimer", stageThread.get());
+
+        List<CompletableFuture<ConnectionRecord>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            long timeout = i % 2 == 0 ? 10000 : 200;
+            futures.add(wslistener.awaitConnectionAsync("c" + i, ConnectionRecord::stateIsActive, timeout, TimeUnit.MILLISECONDS));
+        }
+        Assertions.assertTrue(timer.getPendingTimeouts() >= 1000);
+
+        // Completed awaits cancel their timeouts, the others expire
+        for (int i = 0; i < 1000; i += 2) {
+            wslistener.onMessage(null, connectionEvent("w1", "c" + i, "active"));
+        }
+        for (int i = 0; i < 1000; i++) {
+            CompletableFuture<ConnectionRecord> future = futures.get(i);
+            if (i % 2 == 0) {
+                Assertions.assertEquals("c" + i, future.get(10, TimeUnit.SECONDS).getConnectionId());
+            } else {
+                ExecutionException ex = Assertions.assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+                Assertions.assertTrue(ex.getCause() instanceof TimeoutException);
+            }
+        }
+        // Timeouts of other tests may have expired in the meantime
+        Assertions.assertTrue(timer.getPendingTimeouts() <= pendingBefore);
+    }
+
+    @Test
+    void testFilteredRecording() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(null, EventType.CONNECTIONS, ConnectionRecord.class, ConnectionRecord::stateIsActive,
+                con -> new ConnectionRecord().setConnectionId(con.getConnectionId()).setState(con.getState()));
+
+        String theirLabel = ",\"their_label\":\"" + "x".repeat(1000) + "\"";
+        for (int i = 0; i < 10; i++) {
+            wslistener.onMessage(null, connectionEvent("w1", "c" + i, "request").replace("}}", theirLabel + "}}"));
+            wslistener.onMessage(null, connectionEvent("w1", "c" + i, "active").replace("}}", theirLabel + "}}"));
+        }
+
+        // Only active connections are recorded, without the fields that were projected away
+        Assertions.assertEquals(10, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+        List<WebSocketEvent> events = wslistener.lookupEvents(EventType.CONNECTIONS, CorrelationId.CONNECTION_ID, "c3");
+        Assertions.assertEquals(1, events.size());
+        Assertions.assertTrue(events.get(0).getPayloadSize() < 100);
+        ConnectionRecord con = events.get(0).getPayload(ConnectionRecord.class);
+        Assertions.assertTrue(con.stateIsActive());
+        Assertions.assertNull(con.getTheirLabel());
+
+        ConnectionRecord awaited = wslistener.awaitConnectionAsync("c5", ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS).get();
+        Assertions.assertEquals("c5", awaited.getConnectionId());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> 
+            wslistener.startRecording(EventType.CONNECTIONS, V1CredentialExchange.class, ex -> true));
+    }
+
+    @Test
+    void testUnbindablePayload() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(EventType.CONNECTIONS);
+        EventCursor<ConnectionRecord> cursor = wslistener.openCursor(EventType.CONNECTIONS, ConnectionRecord.class);
+
+        // A pending await that sees the malformed payload first
+        CompletableFuture<ConnectionRecord> pending = wslistener.awaitConnectionAsync(ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS);
+
+        String malformed = connectionEvent("w1", "c1", "active").replace("\"state\":\"active\"", "\"state\":{\"x\":1}");
+        wslistener.onMessage(null, malformed);
+        wslistener.onMessage(null, connectionEvent("w1", "c2", "active"));
+
+        // Both events are recorded, but only the valid one is seen by awaits and cursors
+        Assertions.assertEquals(2, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+        Assertions.assertEquals("c2", pending.get(10, TimeUnit.SECONDS).getConnectionId());
+
+        List<ConnectionRecord> result = wslistener.awaitConnection(ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS)
+                .collect(Collectors.toList());
+        Assertions.assertEquals(1, result.size());
+        Assertions.assertEquals("c2", result.get(0).getConnectionId());
+
+        Assertions.assertEquals("c2", wslistener.awaitConnection("c2", ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS)
+                .findFirst().get().getConnectionId());
+        Assertions.assertEquals("c2", wslistener.awaitConnectionAsync("c2", ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS)
+                .get(10, TimeUnit.SECONDS).getConnectionId());
+
+        List<ConnectionRecord> batch = cursor.poll();
+        Assertions.assertEquals(1, batch.size());
+        Assertions.assertEquals("c2", batch.get(0).getConnectionId());
+    }
+
+    @Test
+    void testFailingDispatch() throws Exception {
+
+        WebSocketListener wslistener = new WebSocketListener("Test", null, null);
+        wslistener.startRecording(EventType.CONNECTIONS);
+
+        // A failing key function does not escape to the reader thread
+        try (KeyedExecutor executor = new KeyedExecutor("handler", 2, 16)) {
+            wslistener.setHandlerExecutor(executor, ev -> {
+                if ("bad".equals(ev.getWalletId()))
+                    throw new IllegalStateException("bad key");
+                return ev.getWalletId();
+            });
+            wslistener.onMessage(null, connectionEvent("bad", "c1", "active"));
+            wslistener.onMessage(null, connectionEvent("w1", "c2", "active"));
+            Assertions.assertEquals(2, wslistener.getRecordedEvents(EventType.CONNECTIONS));
+        }
+
+        // Neither does a failing recording filter
+        WebSocketListener filtered = new WebSocketListener("Test", null, null);
+        filtered.startRecording(EventType.CONNECTIONS, ConnectionRecord.class, con -> {
+            if ("c1".equals(con.getConnectionId()))
+                throw new IllegalStateException("bad filter");
+            return true;
+        });
+        filtered.onMessage(null, connectionEvent("w1", "c1", "active"));
+        filtered.onMessage(null, connectionEvent("w1", "c2", "active"));
+        Assertions.assertEquals("c2", filtered.awaitConnectionAsync(ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS)
+                .get(10, TimeUnit.SECONDS).getConnectionId());
+    }
+}
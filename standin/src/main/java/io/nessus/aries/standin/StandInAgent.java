@@ -0,0 +1,572 @@
+/*-
+ * #%L
+ * Nessus Aries :: Stand-in Agent
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.standin;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.hyperledger.acy_py.generated.model.ConnectionInvitation;
+import org.hyperledger.acy_py.generated.model.DID;
+import org.hyperledger.aries.api.connection.ConnectionAcceptance;
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.api.connection.ConnectionRecord.ConnectionProtocol;
+import org.hyperledger.aries.api.connection.ConnectionRecord.InvitationMode;
+import org.hyperledger.aries.api.connection.ConnectionRecord.RoutingState;
+import org.hyperledger.aries.api.connection.ConnectionState;
+import org.hyperledger.aries.api.connection.ConnectionTheirRole;
+import org.hyperledger.aries.api.connection.CreateInvitationResponse;
+import org.hyperledger.aries.api.connection.ReceiveInvitationRequest;
+import org.hyperledger.aries.api.issue_credential_v1.CredentialExchangeInitiator;
+import org.hyperledger.aries.api.issue_credential_v1.CredentialExchangeRole;
+import org.hyperledger.aries.api.issue_credential_v1.CredentialExchangeState;
+import org.hyperledger.aries.api.issue_credential_v1.V1CredentialExchange;
+import org.hyperledger.aries.api.multitenancy.CreateWalletRequest;
+import org.hyperledger.aries.api.multitenancy.KeyManagementMode;
+import org.hyperledger.aries.api.multitenancy.WalletRecord;
+import org.hyperledger.aries.api.multitenancy.WalletRecord.WalletSettings;
+import org.hyperledger.aries.config.GsonConfig;
+import org.hyperledger.aries.webhook.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import io.nessus.aries.AgentConfiguration;
+import io.nessus.aries.util.AssertArg;
+import io.nessus.aries.util.AssertState;
+import okhttp3.WebSocket;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * An embedded stand-in for a multitenant ACA-Py agent.
+ *
+ * It serves the admin endpoints for tenant wallets, connections and credential issuance,
+ * together with the `/ws` event stream, from an in-process {@link MockWebServer}.
+ * This allows WalletBuilder, NessusWallet and WebSocketClient to run unchanged against
+ * the {@link AgentConfiguration} of the stand-in, without the docker-compose stack.
+ *
+ * There is no ledger and no DIDComm. Both parties of a connection or an exchange are tenants
+ * of the same stand-in and every protocol runs to completion within the request that starts it,
+ * as if all parties had auto-accept enabled. Each state transition is sent as a synthetic event,
+ * in the same format as the agent would send it, to the admin WebSocket and to the WebSocket of
+ * the affected tenant.
+ *
+ * Supported are
+ *
+ *  - Wallets: create, get, list by name and remove
+ *  - Connections: create and receive (RFC 0160) invitations, accept, get and list
+ *  - Issue credential V1 and V2: send, get and list
+ *  - DIDs: create, set public and get endpoint, as well as the register-nym call of a trustee
+ */
+public class StandInAgent implements AutoCloseable {
+
+    static final Logger log = LoggerFactory.getLogger(StandInAgent.class);
+
+    static final Gson gson = GsonConfig.defaultConfig();
+
+    static final String INVITATION_TYPE = "https://didcomm.org/connections/1.0/invitation";
+
+    private static final char[] BASE58 = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz".toCharArray();
+
+    private final String apiKey;
+    private final MockWebServer server = new MockWebServer();
+    private final Map<String, StandInWallet> wallets = new ConcurrentHashMap<>();
+    private final Map<String, StandInWallet> walletsByName = new ConcurrentHashMap<>();
+    private final Map<String, StandInWallet> walletsByToken = new ConcurrentHashMap<>();
+    private final Map<String, ConnectionRef> invitations = new ConcurrentHashMap<>();
+    private final Map<String, ConnectionRef> peers = new ConcurrentHashMap<>();
+    private final Set<WebSocket> adminSockets = ConcurrentHashMap.newKeySet();
+    private final Map<String, Set<WebSocket>> tenantSockets = new ConcurrentHashMap<>();
+    private final LongAdder events = new LongAdder();
+    private volatile AgentConfiguration agentConfig;
+
+    // Hide ctor
+    private StandInAgent(String apiKey) {
+        this.apiKey = apiKey;
+    }
+
+    public static StandInAgentBuilder builder() {
+        return new StandInAgentBuilder();
+    }
+
+    /**
+     * Start the stand-in on an ephemeral local port
+     */
+    public synchronized StandInAgent start() throws IOException {
+        AssertState.isNull(agentConfig, "Agent already started");
+        server.setDispatcher(new StandInDispatcher(this, apiKey));
+        server.start();
+        String url = String.format("http://%s:%d", server.getHostName(), server.getPort());
+        agentConfig = AgentConfiguration.builder()
+                .adminUrl(url)
+                .userUrl(url)
+                .apiKey(apiKey)
+                .build();
+        log.info("Started stand-in agent: {}", url);
+        return this;
+    }
+
+    /**
+     * The configuration that gives access to this stand-in
+     */
+    public AgentConfiguration getAgentConfiguration() {
+        AssertState.notNull(agentConfig, "Agent not started");
+        return agentConfig;
+    }
+
+    public int getWalletCount() {
+        return wallets.size();
+    }
+
+    public int getWebSocketCount() {
+        return adminSockets.size() + tenantSockets.values().stream().mapToInt(Set::size).sum();
+    }
+
+    /**
+     * The number of synthetic events that were sent
+     */
+    public long getEventCount() {
+        return events.sum();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        adminSockets.forEach(ws -> ws.close(1001, "Agent shutdown"));
+        tenantSockets.values().forEach(set -> set.forEach(ws -> ws.close(1001, "Agent shutdown")));
+        server.shutdown();
+        log.info("Stopped stand-in agent");
+    }
+
+    // Wallets ------------------------------------------------------------------------------------
+
+    WalletRecord createWallet(CreateWalletRequest req) {
+        String walletName = req.getWalletName();
+        AssertArg.notNull(walletName, "No wallet name");
+        String walletId = UUID.randomUUID().toString();
+        WalletSettings settings = new WalletSettings();
+        settings.setWalletId(walletId);
+        settings.setWalletName(walletName);
+        settings.setWalletType(req.getWalletType());
+        settings.setWalletDispatchType(req.getWalletDispatchType());
+        settings.setWalletWebhookUrls(req.getWalletWebhookUrls());
+        settings.setDefaultLabel(req.getLabel() != null ? req.getLabel() : walletName);
+        settings.setImageUrl(req.getImageUrl());
+        WalletRecord wr = new WalletRecord();
+        wr.setWalletId(walletId);
+        wr.setKeyManagementMode(req.getKeyManagementMode() != null ? req.getKeyManagementMode() : KeyManagementMode.MANAGED);
+        wr.setSettings(settings);
+        wr.setToken("standin." + UUID.randomUUID());
+        wr.setCreatedAt(now());
+        wr.setUpdatedAt(wr.getCreatedAt());
+        StandInWallet wallet = new StandInWallet(wr);
+        AssertArg.isTrue(walletsByName.putIfAbsent(walletName, wallet) == null, "Wallet with name " + walletName + " already exists");
+        walletsByToken.put(wallet.getToken(), wallet);
+        wallets.put(walletId, wallet);
+        log.debug("Created wallet: [{}] {}", walletId, walletName);
+        return wr;
+    }
+
+    StandInWallet getWallet(String walletId) {
+        StandInWallet wallet = wallets.get(walletId);
+        if (wallet == null)
+            throw new NoSuchElementException("Wallet not found: " + walletId);
+        return wallet;
+    }
+
+    StandInWallet getWalletByToken(String token) {
+        return walletsByToken.get(token);
+    }
+
+    List<WalletRecord> getWallets(String walletName) {
+        return wallets.values().stream()
+                .filter(w -> walletName == null || walletName.equals(w.getWalletName()))
+                .map(StandInWallet::getWalletRecord)
+                .collect(Collectors.toList());
+    }
+
+    void removeWallet(String walletId) {
+        StandInWallet wallet = getWallet(walletId);
+        wallets.remove(walletId);
+        walletsByName.remove(wallet.getWalletName());
+        walletsByToken.remove(wallet.getToken());
+        invitations.values().removeIf(ref -> ref.walletId.equals(walletId));
+        wallet.connections.keySet().forEach(peers::remove);
+        Set<WebSocket> sockets = tenantSockets.remove(walletId);
+        if (sockets != null)
+            sockets.forEach(ws -> ws.close(1000, "Wallet removed"));
+        log.debug("Removed wallet: [{}] {}", walletId, wallet.getWalletName());
+    }
+
+    // WebSockets ---------------------------------------------------------------------------------
+
+    void addWebSocket(WebSocket ws, StandInWallet wallet) {
+        if (wallet != null) {
+            tenantSockets.computeIfAbsent(wallet.getWalletId(), k -> ConcurrentHashMap.newKeySet()).add(ws);
+        } else {
+            adminSockets.add(ws);
+        }
+    }
+
+    void removeWebSocket(WebSocket ws) {
+        adminSockets.remove(ws);
+        tenantSockets.values().forEach(set -> set.remove(ws));
+    }
+
+    private void sendEvent(StandInWallet wallet, EventType evtype, String payload) {
+        String walletId = wallet.getWalletId();
+        String frame = "{\"topic\":\"" + evtype.getTopic() + "\",\"wallet_id\":\"" + walletId + "\",\"payload\":" + payload + "}";
+        events.increment();
+        adminSockets.forEach(ws -> ws.send(frame));
+        Set<WebSocket> sockets = tenantSockets.get(walletId);
+        if (sockets != null)
+            sockets.forEach(ws -> ws.send(frame));
+    }
+
+    // Connections --------------------------------------------------------------------------------
+
+    CreateInvitationResponse createInvitation(StandInWallet wallet, String alias) {
+        String connectionId = UUID.randomUUID().toString();
+        String invitationKey = randomBase58(44);
+        ConnectionRecord con = new ConnectionRecord()
+                .setConnectionId(connectionId)
+                .setAlias(alias)
+                .setInvitationKey(invitationKey)
+                .setInvitationMode(InvitationMode.ONCE)
+                .setAccept(ConnectionAcceptance.AUTO)
+                .setRoutingState(RoutingState.NONE)
+                .setConnectionProtocol(ConnectionProtocol.CONNECTION_V1)
+                .setTheirRole(ConnectionTheirRole.INVITEE)
+                .setCreatedAt(now());
+        wallet.connections.put(connectionId, con);
+        invitations.put(invitationKey, new ConnectionRef(wallet.getWalletId(), connectionId));
+        transition(wallet, con, ConnectionState.INVITATION, "invitation-sent");
+
+        ConnectionInvitation invitation = ConnectionInvitation.builder()
+                .atId(UUID.randomUUID().toString())
+                .atType(INVITATION_TYPE)
+                .label(wallet.getWalletName())
+                .recipientKeys(List.of(invitationKey))
+                .serviceEndpoint(agentConfig.getUserUrl())
+                .build();
+        byte[] encoded = Base64.getUrlEncoder().encode(gson.toJson(invitation).getBytes(UTF_8));
+        CreateInvitationResponse response = new CreateInvitationResponse();
+        response.setConnectionId(connectionId);
+        response.setInvitation(invitation);
+        response.setInvitationUrl(agentConfig.getUserUrl() + "?c_i=" + new String(encoded, UTF_8));
+        return response;
+    }
+
+    /**
+     * Receive an invitation that was created by another tenant
+     * @return the connection record of the invitee as JSON
+     */
+    String receiveInvitation(StandInWallet wallet, ReceiveInvitationRequest req, String alias, boolean autoAccept) {
+        List<String> recipientKeys = req.getRecipientKeys();
+        AssertArg.isTrue(recipientKeys != null && recipientKeys.size() == 1, "Invalid recipient keys: " + recipientKeys);
+        String invitationKey = recipientKeys.get(0);
+        AssertArg.isTrue(invitations.containsKey(invitationKey), "Unknown invitation key: " + invitationKey);
+        String connectionId = UUID.randomUUID().toString();
+        ConnectionRecord con = new ConnectionRecord()
+                .setConnectionId(connectionId)
+                .setAlias(alias)
+                .setInvitationKey(invitationKey)
+                .setTheirLabel(req.getLabel())
+                .setAccept(autoAccept ? ConnectionAcceptance.AUTO : ConnectionAcceptance.MANUAL)
+                .setRoutingState(RoutingState.NONE)
+                .setConnectionProtocol(ConnectionProtocol.CONNECTION_V1)
+                .setTheirRole(ConnectionTheirRole.INVITER)
+                .setCreatedAt(now());
+        wallet.connections.put(connectionId, con);
+        String json = transition(wallet, con, ConnectionState.INVITATION, "invitation-received");
+        return autoAccept ? acceptInvitation(wallet, connectionId) : json;
+    }
+
+    /**
+     * Run the connection protocol to completion for a received invitation
+     * @return the connection record of the invitee in state `request` as JSON
+     */
+    String acceptInvitation(StandInWallet invitee, String connectionId) {
+        ConnectionRecord inviteeCon = getConnection(invitee, connectionId);
+        ConnectionRef ref = invitations.remove(inviteeCon.getInvitationKey());
+        AssertState.notNull(ref, "Invitation no longer available: " + inviteeCon.getInvitationKey());
+        StandInWallet inviter = getWallet(ref.walletId);
+        ConnectionRecord inviterCon = getConnection(inviter, ref.connectionId);
+        peers.put(connectionId, ref);
+        peers.put(ref.connectionId, new ConnectionRef(invitee.getWalletId(), connectionId));
+
+        String inviteeDid = randomBase58(22);
+        String inviterDid = randomBase58(22);
+        synchronized (inviteeCon) {
+            inviteeCon.setMyDid(inviteeDid);
+            if (inviteeCon.getTheirLabel() == null)
+                inviteeCon.setTheirLabel(inviter.getWalletName());
+        }
+        String result = transition(invitee, inviteeCon, ConnectionState.REQUEST, "request-sent");
+        synchronized (inviterCon) {
+            inviterCon.setMyDid(inviterDid).setTheirDid(inviteeDid).setTheirLabel(invitee.getWalletName());
+        }
+        transition(inviter, inviterCon, ConnectionState.REQUEST, "request-received");
+        transition(inviter, inviterCon, ConnectionState.RESPONSE, "response-sent");
+        synchronized (inviteeCon) {
+            inviteeCon.setTheirDid(inviterDid);
+        }
+        transition(invitee, inviteeCon, ConnectionState.RESPONSE, "response-received");
+        transition(invitee, inviteeCon, ConnectionState.ACTIVE, "completed");
+        transition(inviter, inviterCon, ConnectionState.ACTIVE, "completed");
+        return result;
+    }
+
+    ConnectionRecord getConnection(StandInWallet wallet, String connectionId) {
+        ConnectionRecord con = wallet.connections.get(connectionId);
+        if (con == null)
+            throw new NoSuchElementException("Connection not found: " + connectionId);
+        return con;
+    }
+
+    private String transition(StandInWallet wallet, ConnectionRecord con, ConnectionState state, String rfc23State) {
+        String json;
+        synchronized (con) {
+            con.setState(state).setRfc23Sate(rfc23State).setUpdatedAt(now());
+            json = gson.toJson(con);
+        }
+        sendEvent(wallet, EventType.CONNECTIONS, json);
+        return json;
+    }
+
+    // Issue Credential ---------------------------------------------------------------------------
+
+    /**
+     * Issue a credential over an active connection with the V1 protocol
+     * @return the exchange record of the issuer in state `offer_sent` as JSON
+     */
+    String sendCredentialV1(StandInWallet issuer, JsonObject req) {
+        String connectionId = getString(req, "connection_id");
+        ConnectionRef peer = activePeer(issuer, connectionId);
+        StandInWallet holder = getWallet(peer.walletId);
+        String threadId = UUID.randomUUID().toString();
+        V1CredentialExchange issuerEx = credentialExchangeV1(connectionId, threadId, CredentialExchangeRole.ISSUER, CredentialExchangeInitiator.SELF, req);
+        V1CredentialExchange holderEx = credentialExchangeV1(peer.connectionId, threadId, CredentialExchangeRole.HOLDER, CredentialExchangeInitiator.EXTERNAL, req);
+        holderEx.setCredentialId(UUID.randomUUID().toString());
+        issuer.credExV1.put(issuerEx.getCredentialExchangeId(), issuerEx);
+        holder.credExV1.put(holderEx.getCredentialExchangeId(), holderEx);
+
+        String result = transition(issuer, issuerEx, CredentialExchangeState.OFFER_SENT);
+        transition(holder, holderEx, CredentialExchangeState.OFFER_RECEIVED);
+        transition(holder, holderEx, CredentialExchangeState.REQUEST_SENT);
+        transition(issuer, issuerEx, CredentialExchangeState.REQUEST_RECEIVED);
+        transition(issuer, issuerEx, CredentialExchangeState.CREDENTIAL_ISSUED);
+        transition(holder, holderEx, CredentialExchangeState.CREDENTIAL_RECEIVED);
+        transition(holder, holderEx, CredentialExchangeState.CREDENTIAL_ACKED);
+        transition(issuer, issuerEx, CredentialExchangeState.CREDENTIAL_ACKED);
+        return result;
+    }
+
+    /**
+     * Issue a credential over an active connection with the V2 protocol
+     * @return the exchange record of the issuer in state `offer-sent` as JSON
+     */
+    String sendCredentialV2(StandInWallet issuer, JsonObject req) {
+        String connectionId = getString(req, "connection_id");
+        ConnectionRef peer = activePeer(issuer, connectionId);
+        StandInWallet holder = getWallet(peer.walletId);
+        String threadId = UUID.randomUUID().toString();
+        JsonObject issuerEx = credentialExchangeV2(connectionId, threadId, "issuer", "self", req);
+        JsonObject holderEx = credentialExchangeV2(peer.connectionId, threadId, "holder", "external", req);
+        issuer.credExV2.put(issuerEx.get("cred_ex_id").getAsString(), issuerEx);
+        holder.credExV2.put(holderEx.get("cred_ex_id").getAsString(), holderEx);
+
+        String result = transition(issuer, issuerEx, "offer-sent");
+        transition(holder, holderEx, "offer-received");
+        transition(holder, holderEx, "request-sent");
+        transition(issuer, issuerEx, "request-received");
+        transition(issuer, issuerEx, "credential-issued");
+        transition(holder, holderEx, "credential-received");
+        transition(holder, holderEx, "done");
+        transition(issuer, issuerEx, "done");
+        return result;
+    }
+
+    private ConnectionRef activePeer(StandInWallet wallet, String connectionId) {
+        ConnectionRecord con = getConnection(wallet, connectionId);
+        synchronized (con) {
+            AssertState.isTrue(con.stateIsActive(), "Connection not ready: " + connectionId);
+        }
+        ConnectionRef peer = peers.get(connectionId);
+        AssertState.isTrue(peer != null && wallets.containsKey(peer.walletId), "No peer for connection: " + connectionId);
+        return peer;
+    }
+
+    private V1CredentialExchange credentialExchangeV1(String connectionId, String threadId, CredentialExchangeRole role, CredentialExchangeInitiator initiator, JsonObject req) {
+        V1CredentialExchange cex = new V1CredentialExchange();
+        cex.setCredentialExchangeId(UUID.randomUUID().toString());
+        cex.setConnectionId(connectionId);
+        cex.setThreadId(threadId);
+        cex.setRole(role);
+        cex.setInitiator(initiator);
+        cex.setAutoOffer(true);
+        cex.setAutoIssue(true);
+        cex.setAutoRemove(false);
+        cex.setCredentialDefinitionId(getString(req, "cred_def_id"));
+        cex.setSchemaId(getString(req, "schema_id"));
+        cex.setCreatedAt(now());
+        return cex;
+    }
+
+    private JsonObject credentialExchangeV2(String connectionId, String threadId, String role, String initiator, JsonObject req) {
+        JsonObject cex = new JsonObject();
+        cex.addProperty("cred_ex_id", UUID.randomUUID().toString());
+        cex.addProperty("connection_id", connectionId);
+        cex.addProperty("thread_id", threadId);
+        cex.addProperty("role", role);
+        cex.addProperty("initiator", initiator);
+        cex.addProperty("auto_offer", true);
+        cex.addProperty("auto_issue", true);
+        cex.addProperty("auto_remove", false);
+        JsonElement preview = req.get("credential_preview");
+        if (preview != null)
+            cex.add("cred_preview", preview.deepCopy());
+        cex.addProperty("created_at", now());
+        return cex;
+    }
+
+    private String transition(StandInWallet wallet, V1CredentialExchange cex, CredentialExchangeState state) {
+        String json;
+        synchronized (cex) {
+            cex.setState(state);
+            cex.setUpdatedAt(now());
+            json = gson.toJson(cex);
+        }
+        sendEvent(wallet, EventType.ISSUE_CREDENTIAL, json);
+        return json;
+    }
+
+    private String transition(StandInWallet wallet, JsonObject cex, String state) {
+        String json;
+        synchronized (cex) {
+            cex.addProperty("state", state);
+            cex.addProperty("updated_at", now());
+            json = cex.toString();
+        }
+        sendEvent(wallet, EventType.ISSUE_CREDENTIAL_V2, json);
+        return json;
+    }
+
+    // DIDs ---------------------------------------------------------------------------------------
+
+    DID createDid(StandInWallet wallet) {
+        DID did = DID.builder()
+                .did(randomBase58(22))
+                .verkey(randomBase58(44))
+                .posture(DID.PostureEnum.WALLET_ONLY)
+                .method(DID.MethodEnum.SOV)
+                .keyType(DID.KeyTypeEnum.ED25519)
+                .build();
+        wallet.dids.put(did.getDid(), did);
+        return did;
+    }
+
+    DID setPublicDid(StandInWallet wallet, String did) {
+        DID local = wallet.dids.get(did);
+        AssertArg.notNull(local, "DID not found in wallet: " + did);
+        DID result = DID.builder()
+                .did(local.getDid())
+                .verkey(local.getVerkey())
+                .posture(DID.PostureEnum.PUBLIC)
+                .method(local.getMethod())
+                .keyType(local.getKeyType())
+                .build();
+        wallet.setPublicDid(result);
+        return result;
+    }
+
+    // Utils --------------------------------------------------------------------------------------
+
+    /**
+     * Serialize a record while holding its monitor
+     */
+    static String toJson(Object record) {
+        synchronized (record) {
+            return gson.toJson(record);
+        }
+    }
+
+    static String now() {
+        return Instant.now().toString().replace('T', ' ');
+    }
+
+    private static String getString(JsonObject json, String name) {
+        JsonElement el = json.get(name);
+        return el != null && !el.isJsonNull() ? el.getAsString() : null;
+    }
+
+    private static String randomBase58(int length) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = BASE58[rnd.nextInt(BASE58.length)];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The connection of a tenant wallet
+     */
+    static class ConnectionRef {
+
+        final String walletId;
+        final String connectionId;
+
+        ConnectionRef(String walletId, String connectionId) {
+            this.walletId = walletId;
+            this.connectionId = connectionId;
+        }
+    }
+
+    public static class StandInAgentBuilder {
+
+        private String apiKey = "adminkey";
+
+        /**
+         * The admin API key, or null for an agent that does not check it
+         */
+        public StandInAgentBuilder apiKey(String apiKey) {
+            this.apiKey = apiKey;
+            return this;
+        }
+
+        public StandInAgent build() {
+            return new StandInAgent(apiKey);
+        }
+    }
+}
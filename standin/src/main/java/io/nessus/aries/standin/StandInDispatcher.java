@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * Nessus Aries :: Stand-in Agent
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.standin;
+
+import static io.nessus.aries.standin.StandInAgent.gson;
+import static io.nessus.aries.standin.StandInAgent.toJson;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.hyperledger.acy_py.generated.model.DID;
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.api.connection.ReceiveInvitationRequest;
+import org.hyperledger.aries.api.multitenancy.CreateWalletRequest;
+import org.hyperledger.aries.api.multitenancy.WalletRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import okhttp3.HttpUrl;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Routes the admin requests to the stand-in agent.
+ *
+ * Requests with a bearer token act on the tenant wallet of that token.
+ * All other requests must carry the admin API key.
+ */
+class StandInDispatcher extends Dispatcher {
+
+    static final Logger log = LoggerFactory.getLogger(StandInDispatcher.class);
+
+    private final StandInAgent agent;
+    private final String apiKey;
+
+    StandInDispatcher(StandInAgent agent, String apiKey) {
+        this.agent = agent;
+        this.apiKey = apiKey;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        try {
+            return handle(request);
+        } catch (NoSuchElementException ex) {
+            return error(404, ex.getMessage());
+        } catch (IllegalArgumentException | IllegalStateException | JsonParseException ex) {
+            return error(400, ex.getMessage());
+        } catch (RuntimeException ex) {
+            log.error("Cannot handle: " + request.getRequestLine(), ex);
+            return error(500, ex.toString());
+        }
+    }
+
+    private MockResponse handle(RecordedRequest request) {
+        HttpUrl url = request.getRequestUrl();
+        String method = request.getMethod();
+        List<String> path = url.pathSegments();
+
+        StandInWallet wallet = null;
+        String authorization = request.getHeader("Authorization");
+        if (authorization != null && authorization.startsWith("Bearer ")) {
+            wallet = agent.getWalletByToken(authorization.substring(7));
+            if (wallet == null)
+                return error(401, "Invalid bearer token");
+        } else if (apiKey != null && !apiKey.equals(request.getHeader("X-API-Key"))) {
+            return error(401, "Unauthorized");
+        }
+
+        if (route(method, path, "GET", "ws"))
+            return webSocket(wallet);
+
+        // Multitenancy
+
+        if (path.get(0).equals("multitenancy")) {
+            if (wallet != null)
+                return error(401, "Multitenancy requires the admin API key");
+            if (route(method, path, "POST", "multitenancy", "wallet"))
+                return ok(agent.createWallet(gson.fromJson(body(request), CreateWalletRequest.class)));
+            if (route(method, path, "GET", "multitenancy", "wallets"))
+                return ok(results(agent.getWallets(url.queryParameter("wallet_name")), StandInDispatcher::withoutToken));
+            if (route(method, path, "GET", "multitenancy", "wallet", "*"))
+                return ok(withoutToken(agent.getWallet(path.get(2)).getWalletRecord()));
+            if (route(method, path, "POST", "multitenancy", "wallet", "*", "remove")) {
+                agent.removeWallet(path.get(2));
+                return ok("{}");
+            }
+            return notFound(request);
+        }
+
+        // Everything else acts on a tenant wallet
+
+        if (wallet == null)
+            return error(400, "The stand-in agent has no base wallet, use a tenant token");
+
+        // Connections
+
+        if (route(method, path, "POST", "connections", "create-invitation"))
+            return ok(agent.createInvitation(wallet, url.queryParameter("alias")));
+        if (route(method, path, "POST", "connections", "receive-invitation")) {
+            ReceiveInvitationRequest req = gson.fromJson(body(request), ReceiveInvitationRequest.class);
+            boolean autoAccept = Boolean.parseBoolean(url.queryParameter("auto_accept"));
+            return ok(agent.receiveInvitation(wallet, req, url.queryParameter("alias"), autoAccept));
+        }
+        if (route(method, path, "POST", "connections", "*", "accept-invitation"))
+            return ok(agent.acceptInvitation(wallet, path.get(1)));
+        if (route(method, path, "GET", "connections")) {
+            String state = url.queryParameter("state");
+            Predicate<ConnectionRecord> filter = con -> state == null || (con.getState() != null && state.equalsIgnoreCase(con.getState().name()));
+            return ok(results(wallet.connections.values().stream().filter(filter).collect(Collectors.toList()), StandInAgent::toJson));
+        }
+        if (route(method, path, "GET", "connections", "*"))
+            return ok(toJson(agent.getConnection(wallet, path.get(1))));
+
+        // Issue Credential V1
+
+        if (route(method, path, "POST", "issue-credential", "send"))
+            return ok(agent.sendCredentialV1(wallet, jsonBody(request)));
+        if (route(method, path, "GET", "issue-credential", "records"))
+            return ok(results(wallet.credExV1.values(), StandInAgent::toJson));
+        if (route(method, path, "GET", "issue-credential", "records", "*"))
+            return ok(toJson(found(wallet.credExV1.get(path.get(2)), "Credential exchange not found: " + path.get(2))));
+
+        // Issue Credential V2
+
+        if (route(method, path, "POST", "issue-credential-2.0", "send"))
+            return ok(agent.sendCredentialV2(wallet, jsonBody(request)));
+        if (route(method, path, "GET", "issue-credential-2.0", "records"))
+            return ok(results(wallet.credExV2.values(), cex -> "{\"cred_ex_record\":" + toJson(cex) + "}"));
+        if (route(method, path, "GET", "issue-credential-2.0", "records", "*")) {
+            JsonObject cex = found(wallet.credExV2.get(path.get(2)), "Credential exchange not found: " + path.get(2));
+            return ok("{\"cred_ex_record\":" + toJson(cex) + "}");
+        }
+
+        // Present Proof is not supported, but a resync lists its records
+
+        if (route(method, path, "GET", "present-proof", "records") || route(method, path, "GET", "present-proof-2.0", "records"))
+            return ok("{\"results\":[]}");
+
+        // DIDs
+
+        if (route(method, path, "POST", "wallet", "did", "create"))
+            return ok(result(agent.createDid(wallet)));
+        if (route(method, path, "POST", "wallet", "did", "public"))
+            return ok(result(agent.setPublicDid(wallet, url.queryParameter("did"))));
+        if (route(method, path, "GET", "wallet", "did", "public"))
+            return ok(result(wallet.getPublicDid()));
+        if (route(method, path, "GET", "wallet", "get-did-endpoint")) {
+            JsonObject json = new JsonObject();
+            json.addProperty("did", url.queryParameter("did"));
+            json.addProperty("endpoint", agent.getAgentConfiguration().getUserUrl());
+            return ok(json.toString());
+        }
+        if (route(method, path, "POST", "ledger", "register-nym")) {
+            log.debug("{}: Register nym {} with role {}", wallet.getWalletName(), url.queryParameter("did"), url.queryParameter("role"));
+            return ok("{\"success\":true}");
+        }
+
+        return notFound(request);
+    }
+
+    private MockResponse webSocket(StandInWallet wallet) {
+        return new MockResponse().withWebSocketUpgrade(new WebSocketListener() {
+
+            @Override
+            public void onOpen(WebSocket ws, Response response) {
+                agent.addWebSocket(ws, wallet);
+            }
+
+            @Override
+            public void onClosing(WebSocket ws, int code, String reason) {
+                ws.close(1000, null);
+            }
+
+            @Override
+            public void onClosed(WebSocket ws, int code, String reason) {
+                agent.removeWebSocket(ws);
+            }
+
+            @Override
+            public void onFailure(WebSocket ws, Throwable th, Response response) {
+                agent.removeWebSocket(ws);
+            }
+        });
+    }
+
+    /**
+     * Match the request against a method and path, where `*` matches any path segment
+     */
+    private static boolean route(String method, List<String> path, String expMethod, String... segments) {
+        if (!method.equals(expMethod) || path.size() != segments.length)
+            return false;
+        for (int i = 0; i < segments.length; i++) {
+            if (!segments[i].equals("*") && !segments[i].equals(path.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static <T> T found(T value, String message) {
+        if (value == null)
+            throw new NoSuchElementException(message);
+        return value;
+    }
+
+    private static String body(RecordedRequest request) {
+        return request.getBody().readUtf8();
+    }
+
+    private static JsonObject jsonBody(RecordedRequest request) {
+        return JsonParser.parseString(body(request)).getAsJsonObject();
+    }
+
+    private static <T> String results(Collection<T> records, Function<T, String> mapper) {
+        return records.stream().map(mapper).collect(Collectors.joining(",", "{\"results\":[", "]}"));
+    }
+
+    private static String result(DID did) {
+        return "{\"result\":" + gson.toJson(did) + "}";
+    }
+
+    private static String withoutToken(WalletRecord wr) {
+        JsonObject json = gson.toJsonTree(wr).getAsJsonObject();
+        json.remove("token");
+        return json.toString();
+    }
+
+    private static MockResponse ok(Object body) {
+        return ok(gson.toJson(body));
+    }
+
+    private static MockResponse ok(String json) {
+        return new MockResponse()
+                .setHeader("Content-Type", "application/json")
+                .setBody(json);
+    }
+
+    private static MockResponse notFound(RecordedRequest request) {
+        return error(404, "Not supported by the stand-in agent: " + request.getMethod() + " " + request.getRequestUrl().encodedPath());
+    }
+
+    private static MockResponse error(int code, String message) {
+        return new MockResponse()
+                .setResponseCode(code)
+                .setHeader("Content-Type", "text/plain")
+                .setBody(String.valueOf(message));
+    }
+}
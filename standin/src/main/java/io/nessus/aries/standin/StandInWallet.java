@@ -0,0 +1,75 @@
+/*-
+ * #%L
+ * Nessus Aries :: Stand-in Agent
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.standin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hyperledger.acy_py.generated.model.DID;
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.api.issue_credential_v1.V1CredentialExchange;
+import org.hyperledger.aries.api.multitenancy.WalletRecord;
+
+import com.google.gson.JsonObject;
+
+/**
+ * The state that the stand-in agent holds for a tenant wallet.
+ *
+ * Records are mutated and serialized while holding their monitor,
+ * so that concurrent readers never see a partial state transition.
+ */
+class StandInWallet {
+
+    final Map<String, ConnectionRecord> connections = new ConcurrentHashMap<>();
+    final Map<String, V1CredentialExchange> credExV1 = new ConcurrentHashMap<>();
+    final Map<String, JsonObject> credExV2 = new ConcurrentHashMap<>();
+    final Map<String, DID> dids = new ConcurrentHashMap<>();
+
+    private final WalletRecord walletRecord;
+    private volatile DID publicDid;
+
+    StandInWallet(WalletRecord walletRecord) {
+        this.walletRecord = walletRecord;
+    }
+
+    WalletRecord getWalletRecord() {
+        return walletRecord;
+    }
+
+    String getWalletId() {
+        return walletRecord.getWalletId();
+    }
+
+    String getWalletName() {
+        return walletRecord.getSettings().getWalletName();
+    }
+
+    String getToken() {
+        return walletRecord.getToken();
+    }
+
+    DID getPublicDid() {
+        return publicDid;
+    }
+
+    void setPublicDid(DID publicDid) {
+        this.publicDid = publicDid;
+    }
+}
@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * Nessus Aries :: Stand-in Agent
+ * %%
+ * Copyright (C) 2022 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.aries.test.standin;
+
+import static org.hyperledger.aries.api.ledger.IndyLedgerRoles.ENDORSER;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hyperledger.acy_py.generated.model.ConnectionInvitation;
+import org.hyperledger.acy_py.generated.model.V20CredExRecordDetail;
+import org.hyperledger.aries.AriesClient;
+import org.hyperledger.aries.api.connection.ConnectionReceiveInvitationFilter;
+import org.hyperledger.aries.api.connection.ConnectionRecord;
+import org.hyperledger.aries.api.connection.ConnectionState;
+import org.hyperledger.aries.api.connection.CreateInvitationRequest;
+import org.hyperledger.aries.api.connection.CreateInvitationResponse;
+import org.hyperledger.aries.api.connection.ReceiveInvitationRequest;
+import org.hyperledger.aries.api.issue_credential_v1.CredentialExchangeState;
+import org.hyperledger.aries.api.issue_credential_v1.IssueCredentialRecordsFilter;
+import org.hyperledger.aries.api.issue_credential_v1.V1CredentialExchange;
+import org.hyperledger.aries.api.issue_credential_v1.V1CredentialProposalRequest;
+import org.hyperledger.aries.api.issue_credential_v2.V20CredExRecord;
+import org.hyperledger.aries.api.issue_credential_v2.V2IssueCredentialRecordsFilter;
+import org.hyperledger.aries.webhook.EventType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.nessus.aries.standin.StandInAgent;
+import io.nessus.aries.wallet.NessusWallet;
+import io.nessus.aries.wallet.WalletBuilder;
+import io.nessus.aries.websocket.WebSocketClient;
+
+public class StandInAgentTest {
+
+    final Logger log = LoggerFactory.getLogger(getClass());
+
+    StandInAgent agent;
+
+    @BeforeEach
+    void before() throws Exception {
+        agent = StandInAgent.builder().build().start();
+    }
+
+    @AfterEach
+    void after() throws Exception {
+        agent.close();
+    }
+
+    @Test
+    void testWalletLifecycle() throws Exception {
+
+        NessusWallet govWallet = new WalletBuilder("Government")
+                .agentConfig(agent.getAgentConfiguration())
+                .build();
+
+        NessusWallet faberWallet = new WalletBuilder("Faber")
+                .agentConfig(agent.getAgentConfiguration())
+                .trusteeWallet(govWallet)
+                .ledgerRole(ENDORSER)
+                .build();
+
+        Assertions.assertEquals(2, agent.getWalletCount());
+        Assertions.assertNotNull(faberWallet.getPublicDid());
+        Assertions.assertEquals(faberWallet.getPublicDid().getDid(), faberWallet.createClient().walletDidPublic().get().getDid());
+
+        // Wallet names are unique
+        WalletBuilder duplicate = new WalletBuilder("Faber").agentConfig(agent.getAgentConfiguration());
+        Assertions.assertThrows(Exception.class, () -> duplicate.build());
+
+        faberWallet.closeAndRemove();
+        govWallet.closeAndRemove();
+        Assertions.assertEquals(0, agent.getWalletCount());
+    }
+
+    @Test
+    void testConnectionAndCredential() throws Exception {
+
+        NessusWallet faberWallet = new WalletBuilder("Faber").agentConfig(agent.getAgentConfiguration()).build();
+        NessusWallet aliceWallet = new WalletBuilder("Alice").agentConfig(agent.getAgentConfiguration()).build();
+
+        try {
+
+            AriesClient faber = faberWallet.createClient();
+            AriesClient alice = aliceWallet.createClient();
+
+            WebSocketClient faberWSClient = faberWallet.createWebSocketClient()
+                    .startRecording(EventType.CONNECTIONS, EventType.ISSUE_CREDENTIAL, EventType.ISSUE_CREDENTIAL_V2);
+            WebSocketClient aliceWSClient = aliceWallet.createWebSocketClient()
+                    .startRecording(EventType.CONNECTIONS, EventType.ISSUE_CREDENTIAL, EventType.ISSUE_CREDENTIAL_V2);
+
+            CreateInvitationResponse response = faber.connectionsCreateInvitation(CreateInvitationRequest.builder().build()).get();
+            ConnectionInvitation invitation = response.getInvitation();
+
+            ConnectionRecord aliceRequest = alice.connectionsReceiveInvitation(ReceiveInvitationRequest.builder()
+                    .recipientKeys(invitation.getRecipientKeys())
+                    .serviceEndpoint(invitation.getServiceEndpoint())
+                    .build(), ConnectionReceiveInvitationFilter.builder()
+                        .autoAccept(true)
+                        .build()).get();
+            Assertions.assertEquals(ConnectionState.REQUEST, aliceRequest.getState());
+
+            ConnectionRecord faberConnection = faberWSClient
+                    .awaitConnection(response.getConnectionId(), ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS)
+                    .findAny().get();
+            ConnectionRecord aliceConnection = aliceWSClient
+                    .awaitConnection(aliceRequest.getConnectionId(), ConnectionRecord::stateIsActive, 10, TimeUnit.SECONDS)
+                    .findAny().get();
+            Assertions.assertEquals("Alice", faberConnection.getTheirLabel());
+            Assertions.assertEquals(faberConnection.getMyDid(), aliceConnection.getTheirDid());
+
+            List<ConnectionRecord> faberConnections = faber.connections().get();
+            Assertions.assertEquals(1, faberConnections.size());
+            Assertions.assertEquals(ConnectionState.ACTIVE, faberConnections.get(0).getState());
+
+            // Issue Credential V1
+            V1CredentialExchange faberCredEx = faber.issueCredentialSend(V1CredentialProposalRequest.builder()
+                    .connectionId(faberConnection.getConnectionId())
+                    .credentialDefinitionId("WgWxqztrNooG92RXvxSTWv:3:CL:20:tag")
+                    .build()).get();
+            Assertions.assertEquals(CredentialExchangeState.OFFER_SENT, faberCredEx.getState());
+
+            V1CredentialExchange aliceCredEx = aliceWSClient
+                    .awaitIssueCredentialV1(cex -> cex.getState() == CredentialExchangeState.CREDENTIAL_ACKED, 10, TimeUnit.SECONDS)
+                    .findAny().get();
+            Assertions.assertEquals(faberCredEx.getThreadId(), aliceCredEx.getThreadId());
+            Assertions.assertEquals(aliceConnection.getConnectionId(), aliceCredEx.getConnectionId());
+            faberWSClient.awaitIssueCredentialV1(faberCredEx.getCredentialExchangeId(), 
+                    cex -> cex.getState() == CredentialExchangeState.CREDENTIAL_ACKED, 10, TimeUnit.SECONDS).findAny().get();
+
+            List<V1CredentialExchange> aliceRecords = alice.issueCredentialRecords(IssueCredentialRecordsFilter.builder().build()).get();
+            Assertions.assertEquals(CredentialExchangeState.CREDENTIAL_ACKED, aliceRecords.get(0).getState());
+
+            // Issue Credential V2
+            V20CredExRecord faberCredExV2 = faber.issueCredentialV2Send(V1CredentialProposalRequest.builder()
+                    .connectionId(faberConnection.getConnectionId())
+                    .build()).get();
+            Assertions.assertEquals(CredentialExchangeState.OFFER_SENT, faberCredExV2.getState());
+
+            V20CredExRecord aliceCredExV2 = aliceWSClient
+                    .awaitIssueCredentialV2(cex -> cex.getState() == CredentialExchangeState.DONE, 10, TimeUnit.SECONDS)
+                    .findAny().get();
+            Assertions.assertEquals(faberCredExV2.getThreadId(), aliceCredExV2.getThreadId());
+
+            List<V20CredExRecordDetail> faberRecords = faber.issueCredentialV2Records(V2IssueCredentialRecordsFilter.builder().build()).get();
+            Assertions.assertEquals(faberCredExV2.getCredentialExchangeId(), faberRecords.get(0).getCredExRecord().getCredExId());
+
+        } finally {
+            faberWallet.closeAndRemove();
+            aliceWallet.closeAndRemove();
+        }
+
+        Assertions.assertEquals(0, agent.getWalletCount());
+        Assertions.assertTrue(agent.getEventCount() >= 22, "Event count: " + agent.getEventCount());
+    }
+}